@@ -16,5 +16,21 @@
  */
 package com.dbeaver.rpc;
 
-public class RpcException {
+/**
+ * Error of a framed RPC call. Extends the REST client exception, so callers may handle both the same way.
+ */
+public class RpcException extends org.jkiss.utils.rest.RpcException {
+    private static final long serialVersionUID = 1;
+
+    public RpcException(String message) {
+        super(message);
+    }
+
+    public RpcException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    public RpcException(Throwable cause) {
+        super(cause);
+    }
 }
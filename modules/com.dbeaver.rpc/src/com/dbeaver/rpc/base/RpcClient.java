@@ -16,6 +16,241 @@
  */
 package com.dbeaver.rpc.base;
 
-public class RpcClient {
+import com.dbeaver.rpc.RpcException;
+import com.google.gson.Gson;
+import org.jkiss.code.NotNull;
+import org.jkiss.code.Nullable;
+import org.jkiss.utils.CommonUtils;
+import org.jkiss.utils.io.FastByteArrayOutputStream;
+import org.jkiss.utils.rest.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Client of {@link RpcServer}. Calls of all threads share one persistent channel,
+ * responses are matched to calls by request id.
+ * <p>
+ * Client interfaces are declared the same way as for {@link RestClient}.
+ */
+public class RpcClient extends org.jkiss.utils.rest.RpcClient {
+
+    private static final String DEFAULT_USER_AGENT = "DBeaver RPC Client";
+
+    @NotNull
+    public static <T> Builder<T> builder(@NotNull SocketAddress address, @NotNull Class<T> cls) {
+        return new Builder<>(address, cls);
+    }
+
+    public static final class Builder<T> {
+        private final SocketAddress address;
+        private final Class<T> cls;
+        private Gson gson = RpcConstants.DEFAULT_GSON;
+        private RpcCodec codec = JsonCodec.INSTANCE;
+        private int maxFrameSize = RpcTransport.DEFAULT_MAX_FRAME_SIZE;
+
+        private Builder(@NotNull SocketAddress address, @NotNull Class<T> cls) {
+            this.address = address;
+            this.cls = cls;
+        }
+
+        @NotNull
+        public Builder<T> setGson(@NotNull Gson gson) {
+            this.gson = gson;
+            return this;
+        }
+
+        /**
+         * Sets payload codec. The server must use the same codec, see {@link RpcServer.Builder#setCodec}.
+         */
+        @NotNull
+        public Builder<T> setCodec(@NotNull RpcCodec codec) {
+            this.codec = codec;
+            return this;
+        }
+
+        @NotNull
+        public Builder<T> setMaxFrameSize(int maxFrameSize) {
+            this.maxFrameSize = maxFrameSize;
+            return this;
+        }
+
+        @NotNull
+        public T create() {
+            final FramedInvocationHandler handler = new FramedInvocationHandler(cls, address, gson, codec, maxFrameSize);
+            return createProxy(cls, handler);
+        }
+    }
+
+    static class FramedInvocationHandler extends RpcInvocationHandler implements RpcTransport.FrameHandler {
+
+        private final SocketAddress address;
+        private final int maxFrameSize;
+        private final AtomicInteger nextId = new AtomicInteger();
+        private final Map<Integer, PendingCall> pendingCalls = new ConcurrentHashMap<>();
+        private final Map<String, byte[]> endpointNames = new ConcurrentHashMap<>();
+        private RpcTransport transport;
+        private volatile boolean closed;
+
+        FramedInvocationHandler(
+            @NotNull Class<?> clientClass,
+            @NotNull SocketAddress address,
+            @NotNull Gson gson,
+            @NotNull RpcCodec codec,
+            int maxFrameSize
+        ) {
+            super(clientClass, URI.create("rpc:/"), gson, DEFAULT_USER_AGENT);
+            setCodec(codec);
+            this.address = address;
+            this.maxFrameSize = maxFrameSize;
+        }
+
+        @NotNull
+        @Override
+        protected URI resolveEndpoint(@NotNull Method method, @Nullable RequestMapping mapping) {
+            String endpoint = mapping == null ? null : mapping.value();
+            if (CommonUtils.isEmpty(endpoint)) {
+                endpoint = method.getName();
+            }
+            try {
+                return new URI(null, null, endpoint, null);
+            } catch (URISyntaxException e) {
+                throw new RpcException("Invalid endpoint name '" + endpoint + "'", e);
+            }
+        }
+
+        @NotNull
+        @Override
+        protected InputStream invokeRemoteMethod(
+            @NotNull RpcMethodDescriptor descriptor,
+            @NotNull FastByteArrayOutputStream request
+        ) {
+            return (InputStream) waitForResult(sendRequest(descriptor, request, false));
+        }
+
+        @NotNull
+        @Override
+        protected CompletableFuture<InputStream> invokeRemoteMethodAsync(
+            @NotNull RpcMethodDescriptor descriptor,
+            @NotNull FastByteArrayOutputStream request
+        ) {
+            return sendRequest(descriptor, request, true);
+        }
+
+        @NotNull
+        private CompletableFuture<InputStream> sendRequest(
+            @NotNull RpcMethodDescriptor descriptor,
+            @NotNull FastByteArrayOutputStream request,
+            boolean async
+        ) {
+            final int id = nextId.incrementAndGet();
+            final CompletableFuture<InputStream> future = new CompletableFuture<>();
+            final CompletableFuture<InputStream> result = descriptor.getTimeout() > 0
+                ? future.orTimeout(descriptor.getTimeout(), TimeUnit.SECONDS)
+                : future;
+            try {
+                final RpcTransport transport = getTransport();
+                pendingCalls.put(id, new PendingCall(future, async, transport));
+                result.whenComplete((stream, error) -> pendingCalls.remove(id));
+                if (transport.isClosed()) {
+                    // Closed before the call was registered, so it was not failed by handleClose
+                    throw new RpcException("Connection to " + address + " closed");
+                }
+                transport.send(
+                    id,
+                    RpcTransport.FRAME_REQUEST,
+                    ByteBuffer.wrap(getEndpointName(descriptor)),
+                    ByteBuffer.wrap(request.getInternalBuffer(), 0, request.size()));
+            } catch (Exception e) {
+                future.completeExceptionally(e instanceof RpcException ? e : new RpcException("Failed to send request", e));
+            }
+            return result;
+        }
+
+        /**
+         * Returns endpoint name encoded as {@code short length, UTF-8 bytes}.
+         */
+        @NotNull
+        private byte[] getEndpointName(@NotNull RpcMethodDescriptor descriptor) {
+            return endpointNames.computeIfAbsent(descriptor.getEndpoint().getPath(), path -> {
+                final byte[] name = path.getBytes(StandardCharsets.UTF_8);
+                return ByteBuffer.allocate(Short.BYTES + name.length).putShort((short) name.length).put(name).array();
+            });
+        }
+
+        @NotNull
+        private synchronized RpcTransport getTransport() throws IOException {
+            if (closed) {
+                throw new RpcException("RPC client has been terminated");
+            }
+            if (transport == null || transport.isClosed()) {
+                // (Re)connect on demand, so a server restart does not break the client
+                final SocketChannel channel = SocketChannel.open(address);
+                transport = new RpcTransport(channel, this, maxFrameSize);
+                transport.start("RPC client " + address);
+            }
+            return transport;
+        }
+
+        @Override
+        public void handleFrame(@NotNull RpcTransport transport, int id, byte type, @NotNull ByteBuffer payload) {
+            final PendingCall call = pendingCalls.remove(id);
+            if (call == null) {
+                // Timed out
+                return;
+            }
+            if (type == RpcTransport.FRAME_ERROR) {
+                call.future.completeExceptionally(new RpcException(StandardCharsets.UTF_8.decode(payload).toString()));
+                return;
+            }
+            final InputStream response = new ByteArrayInputStream(payload.array(), payload.position(), payload.remaining());
+            if (call.async) {
+                // Continuations of asynchronous calls must not run on the reader thread
+                call.future.completeAsync(() -> response);
+            } else {
+                call.future.complete(response);
+            }
+        }
+
+        @Override
+        public void handleClose(@NotNull RpcTransport transport, @Nullable Throwable error) {
+            final RpcException exception = new RpcException("Connection to " + address + " closed", error);
+            for (PendingCall call : pendingCalls.values()) {
+                // Calls sent over a newer connection are not affected
+                if (call.transport == transport) {
+                    call.future.completeExceptionally(exception);
+                }
+            }
+        }
+
+        @Override
+        protected boolean isClientClosed() {
+            return closed;
+        }
+
+        @Override
+        protected synchronized void closeClient() {
+            closed = true;
+            if (transport != null) {
+                transport.close();
+                transport = null;
+            }
+        }
+    }
+
+    private record PendingCall(@NotNull CompletableFuture<InputStream> future, boolean async, @NotNull RpcTransport transport) {
+    }
 }
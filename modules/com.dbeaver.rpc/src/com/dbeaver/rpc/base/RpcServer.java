@@ -0,0 +1,471 @@
+/*
+ * DBeaver - Universal Database Manager
+ * Copyright (C) 2010-2024 DBeaver Corp and others
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dbeaver.rpc.base;
+
+import com.dbeaver.rpc.RpcException;
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import org.jkiss.code.NotNull;
+import org.jkiss.code.Nullable;
+import org.jkiss.utils.CommonUtils;
+import org.jkiss.utils.io.FastByteArrayOutputStream;
+import org.jkiss.utils.rest.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Parameter;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.BaseStream;
+import java.util.stream.Stream;
+
+/**
+ * Server of framed binary RPC. Each client keeps one persistent connection, calls are multiplexed over it
+ * and executed by the worker pool, so a slow call does not hold up the others.
+ * <p>
+ * Service interfaces are declared the same way as for {@link RestServer}.
+ */
+public class RpcServer<T> {
+
+    private static final Logger log = Logger.getLogger(RpcServer.class.getName());
+
+    private static final int DEFAULT_MAX_THREADS = Math.max(10, Runtime.getRuntime().availableProcessors());
+
+    private final Gson gson;
+    private final RpcCodec codec;
+    private final int maxFrameSize;
+    private final Map<String, MethodPlan> mappings;
+    private final ServerSocketChannel serverChannel;
+    private final SocketAddress address;
+    private final Executor executor;
+    private final boolean ownsExecutor;
+    private final Set<RpcTransport> connections = ConcurrentHashMap.newKeySet();
+    private final RpcTransport.FrameHandler frameHandler = new FrameHandler();
+    private volatile boolean running = true;
+
+    private RpcServer(@NotNull Builder<T> builder) throws IOException {
+        this.gson = builder.gson;
+        this.codec = builder.codec;
+        this.maxFrameSize = builder.maxFrameSize;
+        this.mappings = createMethodPlans(builder.cls, builder.object, builder.gson);
+        this.ownsExecutor = builder.executor == null;
+        this.executor = builder.executor != null ? builder.executor : createExecutor(builder.maxThreads);
+
+        if (builder.address instanceof UnixDomainSocketAddress) {
+            serverChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        } else {
+            serverChannel = ServerSocketChannel.open();
+        }
+        serverChannel.bind(builder.address, builder.backlog);
+        address = serverChannel.getLocalAddress();
+
+        final Thread acceptor = new Thread(this::acceptConnections, "RPC server " + address);
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @NotNull
+    public static <T> Builder<T> builder(@NotNull Class<T> cls, @NotNull T object) {
+        return new Builder<>(object, cls);
+    }
+
+    /**
+     * Returns address the server listens on.
+     */
+    @NotNull
+    public SocketAddress getAddress() {
+        return address;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            log.log(Level.FINE, "Error closing server channel", e);
+        }
+        for (RpcTransport connection : connections) {
+            connection.close();
+        }
+        if (ownsExecutor && executor instanceof ExecutorService executorService) {
+            executorService.shutdown();
+        }
+        if (address instanceof UnixDomainSocketAddress unixAddress) {
+            try {
+                Files.deleteIfExists(unixAddress.getPath());
+            } catch (IOException e) {
+                log.log(Level.FINE, "Error deleting socket file", e);
+            }
+        }
+    }
+
+    private void acceptConnections() {
+        while (running) {
+            final SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (IOException e) {
+                if (running) {
+                    log.log(Level.SEVERE, "Error accepting RPC connection", e);
+                }
+                return;
+            }
+            try {
+                final RpcTransport connection = new RpcTransport(channel, frameHandler, maxFrameSize);
+                connections.add(connection);
+                connection.start("RPC server connection " + channel.getRemoteAddress());
+            } catch (IOException e) {
+                log.log(Level.SEVERE, "Error opening RPC connection", e);
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    @NotNull
+    private static Executor createExecutor(int maxThreads) {
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(
+            maxThreads, maxThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private final class FrameHandler implements RpcTransport.FrameHandler {
+        @Override
+        public void handleFrame(@NotNull RpcTransport transport, int id, byte type, @NotNull ByteBuffer payload) {
+            if (type != RpcTransport.FRAME_REQUEST) {
+                log.warning("Unexpected RPC frame type " + type);
+                return;
+            }
+            final byte[] name = new byte[payload.getShort() & 0xFFFF];
+            payload.get(name);
+            final String endpoint = new String(name, StandardCharsets.UTF_8);
+            final MethodPlan plan = mappings.get(endpoint);
+            if (plan == null) {
+                sendError(transport, id, "Endpoint '" + endpoint + "' not found");
+                return;
+            }
+            try {
+                executor.execute(() -> execute(transport, id, plan, payload));
+            } catch (RejectedExecutionException e) {
+                sendError(transport, id, running ? "Server is overloaded" : "Server is stopped");
+            }
+        }
+
+        @Override
+        public void handleClose(@NotNull RpcTransport transport, @Nullable Throwable error) {
+            connections.remove(transport);
+            if (error != null) {
+                log.log(Level.FINE, "RPC connection closed", error);
+            }
+        }
+    }
+
+    private void execute(@NotNull RpcTransport transport, int id, @NotNull MethodPlan plan, @NotNull ByteBuffer payload) {
+        final Object result;
+        try {
+            final Object[] values = readParameters(
+                plan,
+                codec.createReader(gson, new ByteArrayInputStream(payload.array(), payload.position(), payload.remaining())));
+            result = plan.invoker.invokeExact(values);
+        } catch (Throwable e) {
+            log.log(Level.SEVERE, "RPC call '" + plan.endpoint + "' failed: " + e.getMessage());
+            sendError(transport, id, e.toString());
+            return;
+        }
+        if (plan.asyncResult && result != null) {
+            // The worker is released while the result is being computed
+            ((CompletionStage<?>) result).whenComplete((value, error) -> {
+                if (error != null) {
+                    final Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                    log.log(Level.SEVERE, "RPC call '" + plan.endpoint + "' failed: " + cause.getMessage());
+                    sendError(transport, id, cause.toString());
+                } else {
+                    sendResult(transport, id, plan, value);
+                }
+            });
+        } else {
+            sendResult(transport, id, plan, result);
+        }
+    }
+
+    @NotNull
+    private static Object[] readParameters(@NotNull MethodPlan plan, @NotNull JsonReader requestReader) throws IOException {
+        final Object[] values = new Object[plan.parameterNames.length];
+        try (JsonReader reader = requestReader) {
+            final JsonToken token;
+            try {
+                token = reader.peek();
+            } catch (EOFException e) {
+                return values;
+            }
+            if (token == JsonToken.NULL) {
+                reader.nextNull();
+                return values;
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                final int index = plan.getParameterIndex(reader.nextName());
+                if (index < 0) {
+                    reader.skipValue();
+                } else {
+                    values[index] = plan.parameterAdapters[index].read(reader);
+                }
+            }
+            reader.endObject();
+        }
+        return values;
+    }
+
+    private void sendResult(@NotNull RpcTransport transport, int id, @NotNull MethodPlan plan, @Nullable Object result) {
+        final FastByteArrayOutputStream buffer = new FastByteArrayOutputStream();
+        if (plan.resultAdapter != null) {
+            // Void results have no content
+            try (JsonWriter writer = codec.createWriter(gson, buffer)) {
+                if (plan.streamResult && result != null) {
+                    writeElements(writer, plan, result);
+                } else {
+                    plan.resultAdapter.write(writer, result);
+                }
+            } catch (Exception e) {
+                log.log(Level.SEVERE, "Failed to serialize result of '" + plan.endpoint + "'", e);
+                sendError(transport, id, "Failed to serialize result: " + e.getMessage());
+                return;
+            }
+        }
+        try {
+            transport.send(id, RpcTransport.FRAME_RESPONSE, ByteBuffer.wrap(buffer.getInternalBuffer(), 0, buffer.size()));
+        } catch (IOException e) {
+            log.log(Level.FINE, "Failed to send RPC response", e);
+        }
+    }
+
+    private static void writeElements(@NotNull JsonWriter writer, @NotNull MethodPlan plan, @NotNull Object result) throws IOException {
+        final Iterator<?> iterator = result instanceof BaseStream<?, ?> stream ? stream.iterator() : (Iterator<?>) result;
+        try {
+            writer.beginArray();
+            while (iterator.hasNext()) {
+                plan.resultAdapter.write(writer, iterator.next());
+            }
+            writer.endArray();
+        } finally {
+            if (result instanceof AutoCloseable closeable) {
+                try {
+                    closeable.close();
+                } catch (Exception ignored) {
+                }
+            }
+        }
+    }
+
+    private static void sendError(@NotNull RpcTransport transport, int id, @NotNull String message) {
+        try {
+            transport.send(id, RpcTransport.FRAME_ERROR, StandardCharsets.UTF_8.encode(message));
+        } catch (IOException e) {
+            log.log(Level.FINE, "Failed to send RPC error", e);
+        }
+    }
+
+    @NotNull
+    private static Map<String, MethodPlan> createMethodPlans(@NotNull Class<?> cls, @NotNull Object object, @NotNull Gson gson) {
+        final Map<String, MethodPlan> plans = new HashMap<>();
+        for (Method method : cls.getDeclaredMethods()) {
+            final RequestMapping mapping = method.getDeclaredAnnotation(RequestMapping.class);
+            if (mapping == null) {
+                continue;
+            }
+            final String endpoint = CommonUtils.isEmptyTrimmed(mapping.value()) ? method.getName() : mapping.value();
+            if (plans.containsKey(endpoint)) {
+                log.warning("Method " + method + " has duplicate mapping, skipping");
+                continue;
+            }
+            method.setAccessible(true);
+            plans.put(endpoint, new MethodPlan(endpoint, method, object, gson));
+        }
+        return Collections.unmodifiableMap(plans);
+    }
+
+    /**
+     * Invocation plan of a mapped method, resolved once.
+     */
+    private static final class MethodPlan {
+        private final String endpoint;
+        private final MethodHandle invoker;
+        private final String[] parameterNames;
+        private final TypeAdapter<?>[] parameterAdapters;
+        private final TypeAdapter<Object> resultAdapter;
+        private final boolean asyncResult;
+        private final boolean streamResult;
+
+        @SuppressWarnings("unchecked")
+        MethodPlan(@NotNull String endpoint, @NotNull Method method, @NotNull Object object, @NotNull Gson gson) {
+            this.endpoint = endpoint;
+
+            final Parameter[] parameters = method.getParameters();
+            this.parameterNames = new String[parameters.length];
+            this.parameterAdapters = new TypeAdapter<?>[parameters.length];
+            for (int i = 0; i < parameters.length; i++) {
+                final Parameter p = parameters[i];
+                final RequestParameter param = p.getDeclaredAnnotation(RequestParameter.class);
+                parameterNames[i] = param == null ? p.getName() : param.value();
+                parameterAdapters[i] = gson.getAdapter(TypeToken.get(p.getParameterizedType()));
+            }
+
+            Type type = method.getGenericReturnType();
+            this.asyncResult = CompletionStage.class.isAssignableFrom(method.getReturnType());
+            if (asyncResult) {
+                type = type instanceof ParameterizedType pt ? pt.getActualTypeArguments()[0] : Object.class;
+            }
+            final Class<?> rawType = TypeToken.get(type).getRawType();
+            this.streamResult = Iterator.class.isAssignableFrom(rawType) || BaseStream.class.isAssignableFrom(rawType);
+            if (streamResult) {
+                // Elements are serialized one by one into an array
+                final Type elementType = type instanceof ParameterizedType pt && (rawType == Iterator.class || rawType == Stream.class)
+                    ? pt.getActualTypeArguments()[0]
+                    : Object.class;
+                this.resultAdapter = (TypeAdapter<Object>) gson.getAdapter(TypeToken.get(elementType));
+            } else {
+                this.resultAdapter = type == void.class || type == Void.class ? null : (TypeAdapter<Object>) gson.getAdapter(TypeToken.get(type));
+            }
+
+            try {
+                this.invoker = MethodHandles.lookup().unreflect(method)
+                    .bindTo(object)
+                    .asSpreader(Object[].class, parameters.length)
+                    .asType(MethodType.methodType(Object.class, Object[].class));
+            } catch (IllegalAccessException e) {
+                throw new IllegalArgumentException("Method " + method + " is not accessible", e);
+            }
+        }
+
+        int getParameterIndex(@NotNull String name) {
+            for (int i = 0; i < parameterNames.length; i++) {
+                if (parameterNames[i].equals(name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    public static final class Builder<T> {
+        private final T object;
+        private final Class<T> cls;
+        private SocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+        private int backlog;
+        private Gson gson = RpcConstants.DEFAULT_GSON;
+        private RpcCodec codec = JsonCodec.INSTANCE;
+        private int maxFrameSize = RpcTransport.DEFAULT_MAX_FRAME_SIZE;
+        private Executor executor;
+        private int maxThreads = DEFAULT_MAX_THREADS;
+
+        private Builder(@NotNull T object, @NotNull Class<T> cls) {
+            this.object = object;
+            this.cls = cls;
+        }
+
+        /**
+         * Sets listen address: {@link InetSocketAddress} or {@link UnixDomainSocketAddress}.
+         * By default, the server listens on a free port of the loopback address.
+         */
+        @NotNull
+        public Builder<T> setAddress(@NotNull SocketAddress address) {
+            this.address = address;
+            return this;
+        }
+
+        @NotNull
+        public Builder<T> setBacklog(int backlog) {
+            this.backlog = backlog;
+            return this;
+        }
+
+        @NotNull
+        public Builder<T> setGson(@NotNull Gson gson) {
+            this.gson = gson;
+            return this;
+        }
+
+        /**
+         * Sets payload codec. Clients must use the same codec.
+         */
+        @NotNull
+        public Builder<T> setCodec(@NotNull RpcCodec codec) {
+            this.codec = codec;
+            return this;
+        }
+
+        @NotNull
+        public Builder<T> setMaxFrameSize(int maxFrameSize) {
+            this.maxFrameSize = maxFrameSize;
+            return this;
+        }
+
+        /**
+         * Sets executor of calls. The server does not shut down executors it does not own.
+         */
+        @NotNull
+        public Builder<T> setExecutor(@Nullable Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        @NotNull
+        public Builder<T> setMaxThreads(int maxThreads) {
+            this.maxThreads = maxThreads;
+            return this;
+        }
+
+        @NotNull
+        public RpcServer<T> create() {
+            try {
+                return new RpcServer<>(this);
+            } catch (IOException e) {
+                throw new RpcException("Failed to start RPC server: " + e.getMessage(), e);
+            }
+        }
+    }
+}
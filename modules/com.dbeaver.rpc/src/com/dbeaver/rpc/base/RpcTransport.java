@@ -16,5 +16,172 @@
  */
 package com.dbeaver.rpc.base;
 
-public class RpcTransport {
+import org.jkiss.code.NotNull;
+import org.jkiss.code.Nullable;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Persistent channel exchanging length-prefixed frames. Each frame carries id of the call it belongs to,
+ * so any number of calls can be in flight over the same channel.
+ * <p>
+ * Frame layout: {@code int length, int id, byte type, payload}. Length covers everything after the length field.
+ * Frames are read by a dedicated thread and passed to the {@link FrameHandler}, any thread may send frames.
+ */
+public class RpcTransport implements Closeable {
+
+    public static final byte FRAME_REQUEST = 1;
+    public static final byte FRAME_RESPONSE = 2;
+    public static final byte FRAME_ERROR = 3;
+
+    public static final int DEFAULT_MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+    private static final int HEADER_SIZE = 9;
+
+    public interface FrameHandler {
+        /**
+         * Called by the reader thread for each received frame. Must not block.
+         */
+        void handleFrame(@NotNull RpcTransport transport, int id, byte type, @NotNull ByteBuffer payload);
+
+        /**
+         * Called once when the transport is closed, either explicitly or because of an I/O error.
+         */
+        void handleClose(@NotNull RpcTransport transport, @Nullable Throwable error);
+    }
+
+    private final SocketChannel channel;
+    private final FrameHandler handler;
+    private final int maxFrameSize;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final ByteBuffer writeHeader = ByteBuffer.allocate(HEADER_SIZE);
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    public RpcTransport(@NotNull SocketChannel channel, @NotNull FrameHandler handler, int maxFrameSize) throws IOException {
+        if (channel.supportedOptions().contains(StandardSocketOptions.TCP_NODELAY)) {
+            // Frames are written whole, waiting for more data only delays small calls
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        }
+        this.channel = channel;
+        this.handler = handler;
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * Starts reading frames.
+     */
+    public void start(@NotNull String name) {
+        final Thread reader = new Thread(this::readFrames, name);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Sends a frame. Payload buffers are written with a single gathering write where possible.
+     */
+    public void send(int id, byte type, @NotNull ByteBuffer... payload) throws IOException {
+        long remaining = HEADER_SIZE;
+        for (ByteBuffer buffer : payload) {
+            remaining += buffer.remaining();
+        }
+        if (remaining - HEADER_SIZE > maxFrameSize) {
+            throw new IOException("Frame size " + (remaining - HEADER_SIZE) + " exceeds limit " + maxFrameSize);
+        }
+        final ByteBuffer[] buffers = new ByteBuffer[payload.length + 1];
+        System.arraycopy(payload, 0, buffers, 1, payload.length);
+
+        writeLock.lock();
+        try {
+            if (closed.get()) {
+                throw new ClosedChannelException();
+            }
+            writeHeader.clear();
+            writeHeader.putInt((int) remaining - Integer.BYTES).putInt(id).put(type).flip();
+            buffers[0] = writeHeader;
+            while (remaining > 0) {
+                remaining -= channel.write(buffers);
+            }
+        } catch (IOException e) {
+            close(e);
+            throw e;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    @Override
+    public void close() {
+        close(null);
+    }
+
+    private void close(@Nullable Throwable error) {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        handler.handleClose(this, error);
+    }
+
+    private void readFrames() {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        Throwable error = null;
+        try {
+            while (!closed.get()) {
+                header.clear();
+                if (!readFully(header)) {
+                    // Peer closed the channel between frames
+                    break;
+                }
+                header.flip();
+                final int length = header.getInt() - (HEADER_SIZE - Integer.BYTES);
+                final int id = header.getInt();
+                final byte type = header.get();
+                if (length < 0 || length > maxFrameSize) {
+                    throw new IOException("Invalid frame size " + length);
+                }
+                final ByteBuffer payload = ByteBuffer.allocate(length);
+                if (!readFully(payload)) {
+                    throw new EOFException("Unexpected end of frame");
+                }
+                payload.flip();
+                handler.handleFrame(this, id, type, payload);
+            }
+        } catch (Throwable e) {
+            if (!closed.get()) {
+                error = e;
+            }
+        }
+        close(error);
+    }
+
+    /**
+     * Fills the buffer. Returns {@code false} if the channel reached end of stream before any byte was read.
+     */
+    private boolean readFully(@NotNull ByteBuffer buffer) throws IOException {
+        final int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                if (buffer.position() == start) {
+                    return false;
+                }
+                throw new EOFException("Unexpected end of frame");
+            }
+        }
+        return true;
+    }
 }
@@ -0,0 +1,89 @@
+/*
+ * DBeaver - Universal Database Manager
+ * Copyright (C) 2010-2024 DBeaver Corp and others
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jkiss.utils.rest.jetty;
+
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsServer;
+import com.sun.net.httpserver.spi.HttpServerProvider;
+import org.eclipse.jetty.http.spi.DelegatingThreadPool;
+import org.eclipse.jetty.http.spi.JettyHttpServer;
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.ContextHandlerCollection;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.jkiss.code.Nullable;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * Jetty engine of {@link org.jkiss.utils.rest.RestServer}, see {@link org.jkiss.utils.rest.RestServer.Builder#setServerProvider}.
+ * <p>
+ * Connections are served by non-blocking Jetty connectors, so idle keep-alive connections do not occupy threads.
+ * The connector accepts HTTP/1.1 and cleartext HTTP/2 (h2c), both by upgrade and with prior knowledge.
+ * HTTPS is not supported.
+ */
+public class JettyServerProvider extends HttpServerProvider {
+
+    private final int maxThreads;
+
+    public JettyServerProvider() {
+        this(0);
+    }
+
+    /**
+     * @param maxThreads maximum number of engine threads, or zero for the Jetty default
+     */
+    public JettyServerProvider(int maxThreads) {
+        this.maxThreads = maxThreads;
+    }
+
+    @Override
+    public HttpServer createHttpServer(@Nullable InetSocketAddress addr, int backlog) throws IOException {
+        final QueuedThreadPool threadPool = maxThreads > 0 ? new QueuedThreadPool(maxThreads) : new QueuedThreadPool();
+        threadPool.setName("RPC Jetty");
+        // Delegating pool lets HttpServer.setExecutor replace the engine threads
+        final Server server = new Server(new DelegatingThreadPool(threadPool));
+        server.setHandler(new ContextHandlerCollection());
+
+        final JettyHttpServer httpServer = new JettyHttpServer(server, false);
+        if (addr != null) {
+            final HttpConfiguration config = new HttpConfiguration();
+            final ServerConnector connector = new ServerConnector(
+                server,
+                new HttpConnectionFactory(config),
+                new HTTP2CServerConnectionFactory(config));
+            connector.setHost(addr.getHostString());
+            connector.setPort(addr.getPort());
+            if (backlog > 0) {
+                connector.setAcceptQueueSize(backlog);
+            }
+            server.addConnector(connector);
+            // Binding finds the connector by port, so the engine does not add its HTTP/1.1 connector
+            httpServer.bind(addr, backlog);
+        }
+        return httpServer;
+    }
+
+    @Override
+    public HttpsServer createHttpsServer(@Nullable InetSocketAddress addr, int backlog) {
+        throw new UnsupportedOperationException("HTTPS is not supported");
+    }
+}
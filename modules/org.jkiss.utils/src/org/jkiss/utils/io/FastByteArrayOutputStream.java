@@ -0,0 +1,53 @@
+/*
+ * DBeaver - Universal Database Manager
+ * Copyright (C) 2010-2024 DBeaver Corp and others
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jkiss.utils.io;
+
+import org.jkiss.code.NotNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+/**
+ * Byte array output stream which gives access to its contents without copying them.
+ * <p>
+ * The internal buffer is valid up to {@link #size()} bytes
+ * and must not be modified by the caller.
+ */
+public class FastByteArrayOutputStream extends ByteArrayOutputStream {
+
+    public FastByteArrayOutputStream() {
+        super();
+    }
+
+    public FastByteArrayOutputStream(int size) {
+        super(size);
+    }
+
+    @NotNull
+    public byte[] getInternalBuffer() {
+        return buf;
+    }
+
+    /**
+     * Returns stream reading the current contents of this buffer.
+     */
+    @NotNull
+    public InputStream toInputStream() {
+        return new ByteArrayInputStream(buf, 0, count);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * DBeaver - Universal Database Manager
+ * Copyright (C) 2010-2024 DBeaver Corp and others
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jkiss.utils.rest;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import org.jkiss.code.NotNull;
+import org.jkiss.utils.Base64;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Compact binary codec based on CBOR (RFC 8949).
+ * <p>
+ * Values are written and read as a stream, see {@link CborWriter} and {@link CborReader}.
+ * {@code byte[]} values are transferred as raw byte strings, see {@link #configureGson}.
+ */
+public final class CborCodec implements RpcCodec {
+
+    public static final String CONTENT_TYPE = "application/cbor";
+
+    public static final CborCodec INSTANCE = new CborCodec();
+
+    /**
+     * {@code byte[]} adapter reading and writing CBOR byte strings, and Base64 strings in other formats.
+     * Base64 format is the same as of {@link org.jkiss.utils.GsonUtils.ByteArrayToBase64TypeAdapter}.
+     */
+    public static final TypeAdapter<byte[]> BYTE_ARRAY_ADAPTER = new TypeAdapter<>() {
+        @Override
+        public void write(JsonWriter out, byte[] value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+            } else if (out instanceof CborWriter cborWriter) {
+                cborWriter.value(value);
+            } else {
+                out.value(Base64.encode(value));
+            }
+        }
+
+        @Override
+        public byte[] read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            if (in instanceof CborReader cborReader) {
+                return cborReader.nextBytes();
+            }
+            return Base64.decode(in.nextString());
+        }
+    };
+
+    private CborCodec() {
+    }
+
+    @NotNull
+    @Override
+    public String getContentType() {
+        return CONTENT_TYPE;
+    }
+
+    @NotNull
+    @Override
+    public JsonWriter createWriter(@NotNull Gson gson, @NotNull OutputStream out) {
+        final CborWriter writer = new CborWriter(out);
+        writer.setSerializeNulls(gson.serializeNulls());
+        return writer;
+    }
+
+    @NotNull
+    @Override
+    public JsonReader createReader(@NotNull Gson gson, @NotNull InputStream in) {
+        return new CborReader(in);
+    }
+
+    /**
+     * Registers {@link #BYTE_ARRAY_ADAPTER}, so {@code byte[]} values are transferred as raw byte strings.
+     */
+    @NotNull
+    @Override
+    public Gson configureGson(@NotNull Gson gson) {
+        return gson.newBuilder().registerTypeAdapter(byte[].class, BYTE_ARRAY_ADAPTER).create();
+    }
+}
@@ -0,0 +1,675 @@
+/*
+ * DBeaver - Universal Database Manager
+ * Copyright (C) 2010-2024 DBeaver Corp and others
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jkiss.utils.rest;
+
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import org.jkiss.code.NotNull;
+import org.jkiss.utils.Base64;
+import org.jkiss.utils.IOUtils;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.jkiss.utils.rest.CborWriter.*;
+
+/**
+ * Reads values in CBOR format (RFC 8949) through the {@link JsonReader} API, so any Gson type adapter can use it.
+ * Only the first item of the input is read, empty input is read as {@code null}.
+ * <p>
+ * Byte strings are read as Base64 strings, or as raw bytes with {@link #nextBytes()}.
+ * Map keys which are not text strings are read as their string representation.
+ */
+public class CborReader extends JsonReader {
+
+    private static final int MAX_DEPTH = 512;
+
+    private static final int NUMBER_LONG = 0;
+    private static final int NUMBER_DOUBLE = 1;
+    private static final int NUMBER_BIG = 2;
+
+    private final DataInputStream in;
+    private final NameFeed feed;
+
+    // Containers being read. Items left to read are -1 for indefinite length, map entries are two items
+    private boolean[] maps = new boolean[32];
+    private long[] remaining = new long[32];
+    private long[] counts = new long[32];
+    private String[] pathNames = new String[32];
+    private int depth;
+    private boolean started;
+
+    // Next token and its value
+    private JsonToken peeked;
+    private String stringValue;
+    private byte[] bytesValue;
+    private boolean booleanValue;
+    private int numberType;
+    private long longValue;
+    private double doubleValue;
+    private Number bigValue;
+    private long containerLength;
+
+    /**
+     * Characters read by the superclass. Gson reads map keys after {@code promoteNameToValue}, which only
+     * works with the superclass state, so the superclass is always kept positioned at a name.
+     */
+    private static final class NameFeed extends Reader {
+        private String text;
+        private int position;
+
+        @Override
+        public int read(@NotNull char[] buffer, int offset, int length) {
+            if (text == null || position == text.length()) {
+                return -1;
+            }
+            final int count = Math.min(length, text.length() - position);
+            text.getChars(position, position + count, buffer, offset);
+            position += count;
+            return count;
+        }
+
+        void set(@NotNull String text) {
+            this.text = text;
+            this.position = 0;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    public CborReader(@NotNull InputStream in) {
+        this(in, new NameFeed());
+    }
+
+    private CborReader(@NotNull InputStream in, @NotNull NameFeed feed) {
+        super(feed);
+        this.in = new DataInputStream(new BufferedInputStream(in, IOUtils.DEFAULT_BUFFER_SIZE));
+        this.feed = feed;
+        try {
+            feed.set("{\"");
+            super.beginObject();
+            super.peek();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void beginArray() throws IOException {
+        expect(JsonToken.BEGIN_ARRAY);
+        push(false);
+    }
+
+    @Override
+    public void endArray() throws IOException {
+        expect(JsonToken.END_ARRAY);
+        pop();
+    }
+
+    @Override
+    public void beginObject() throws IOException {
+        expect(JsonToken.BEGIN_OBJECT);
+        push(true);
+    }
+
+    @Override
+    public void endObject() throws IOException {
+        expect(JsonToken.END_OBJECT);
+        pop();
+    }
+
+    @Override
+    public boolean hasNext() throws IOException {
+        final JsonToken token = peek();
+        return token != JsonToken.END_ARRAY && token != JsonToken.END_OBJECT && token != JsonToken.END_DOCUMENT;
+    }
+
+    @Override
+    public JsonToken peek() throws IOException {
+        if (peeked == null) {
+            try {
+                peeked = readToken();
+            } catch (EOFException e) {
+                throw new JsonSyntaxException("Unexpected end of CBOR data", e);
+            }
+        }
+        if (peeked == JsonToken.NAME && super.peek() == JsonToken.STRING) {
+            // The name was promoted to a value
+            return JsonToken.STRING;
+        }
+        return peeked;
+    }
+
+    @Override
+    public String nextName() throws IOException {
+        expect(JsonToken.NAME);
+        pathNames[depth - 1] = stringValue;
+        peeked = null;
+        return stringValue;
+    }
+
+    @Override
+    public String nextString() throws IOException {
+        return nextText("a string");
+    }
+
+    /**
+     * Returns the next byte string, or decodes the next text string from Base64.
+     */
+    @NotNull
+    public byte[] nextBytes() throws IOException {
+        expect(JsonToken.STRING);
+        if (peeked == JsonToken.NAME) {
+            return Base64.decode(nextText("a string"));
+        }
+        final byte[] bytes = bytesValue != null ? bytesValue : Base64.decode(stringValue);
+        consumeValue();
+        return bytes;
+    }
+
+    @Override
+    public boolean nextBoolean() throws IOException {
+        expect(JsonToken.BOOLEAN);
+        consumeValue();
+        return booleanValue;
+    }
+
+    @Override
+    public void nextNull() throws IOException {
+        expect(JsonToken.NULL);
+        consumeValue();
+    }
+
+    @Override
+    public double nextDouble() throws IOException {
+        if (peek() != JsonToken.NUMBER) {
+            return Double.parseDouble(nextText("a double"));
+        }
+        final double value = switch (numberType) {
+            case NUMBER_LONG -> longValue;
+            case NUMBER_DOUBLE -> doubleValue;
+            default -> bigValue.doubleValue();
+        };
+        consumeValue();
+        return value;
+    }
+
+    @Override
+    public long nextLong() throws IOException {
+        if (peek() != JsonToken.NUMBER) {
+            final String text = nextText("a long");
+            try {
+                return Long.parseLong(text);
+            } catch (NumberFormatException e) {
+                return parseLong(text);
+            }
+        }
+        final long value = switch (numberType) {
+            case NUMBER_LONG -> longValue;
+            case NUMBER_DOUBLE -> {
+                if ((long) doubleValue != doubleValue) {
+                    throw new NumberFormatException("Expected a long but was " + doubleValue + locationString());
+                }
+                yield (long) doubleValue;
+            }
+            default -> parseLong(bigValue.toString());
+        };
+        consumeValue();
+        return value;
+    }
+
+    @Override
+    public int nextInt() throws IOException {
+        final long value = nextLong();
+        if ((int) value != value) {
+            throw new NumberFormatException("Expected an int but was " + value + locationString());
+        }
+        return (int) value;
+    }
+
+    @Override
+    public void skipValue() throws IOException {
+        int count = 0;
+        do {
+            switch (peek()) {
+                case BEGIN_ARRAY -> {
+                    beginArray();
+                    count++;
+                }
+                case BEGIN_OBJECT -> {
+                    beginObject();
+                    count++;
+                }
+                case END_ARRAY -> {
+                    endArray();
+                    count--;
+                }
+                case END_OBJECT -> {
+                    endObject();
+                    count--;
+                }
+                case NAME -> nextName();
+                case STRING, NUMBER -> nextText("a value");
+                case END_DOCUMENT -> {
+                    return;
+                }
+                default -> consumeValue();
+            }
+        } while (count > 0);
+    }
+
+    @Override
+    public void close() throws IOException {
+        peeked = JsonToken.END_DOCUMENT;
+        depth = 0;
+        started = true;
+        in.close();
+    }
+
+    @Override
+    public String getPath() {
+        return getPath(false);
+    }
+
+    @Override
+    public String getPreviousPath() {
+        return getPath(true);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + locationString();
+    }
+
+    private void expect(@NotNull JsonToken expected) throws IOException {
+        final JsonToken token = peek();
+        if (token != expected) {
+            throw new IllegalStateException("Expected " + expected + " but was " + token + locationString());
+        }
+    }
+
+    /**
+     * Reads the next string, number or promoted name as a string.
+     */
+    @NotNull
+    private String nextText(@NotNull String expected) throws IOException {
+        final JsonToken token = peek();
+        final String value;
+        if (token == JsonToken.STRING && peeked == JsonToken.NAME) {
+            value = stringValue;
+            pathNames[depth - 1] = value;
+            peeked = null;
+            // Position the superclass at a name again
+            feed.set("\":0,\"");
+            super.nextString();
+            super.nextInt();
+            super.peek();
+            return value;
+        } else if (token == JsonToken.STRING) {
+            value = bytesValue != null ? Base64.encode(bytesValue) : stringValue;
+        } else if (token == JsonToken.NUMBER) {
+            value = getNumberText();
+        } else {
+            throw new IllegalStateException("Expected " + expected + " but was " + token + locationString());
+        }
+        consumeValue();
+        return value;
+    }
+
+    private void consumeValue() {
+        peeked = null;
+        stringValue = null;
+        bytesValue = null;
+        bigValue = null;
+    }
+
+    private long parseLong(@NotNull String text) {
+        try {
+            return new BigDecimal(text).longValueExact();
+        } catch (ArithmeticException | NumberFormatException e) {
+            throw new NumberFormatException("Expected a long but was " + text + locationString());
+        }
+    }
+
+    @NotNull
+    private String getNumberText() {
+        return switch (numberType) {
+            case NUMBER_LONG -> Long.toString(longValue);
+            case NUMBER_DOUBLE -> Double.toString(doubleValue);
+            default -> bigValue.toString();
+        };
+    }
+
+    private void push(boolean map) {
+        if (depth == MAX_DEPTH) {
+            throw new JsonSyntaxException("CBOR data is nested too deeply");
+        }
+        if (depth == maps.length) {
+            maps = Arrays.copyOf(maps, depth * 2);
+            remaining = Arrays.copyOf(remaining, depth * 2);
+            counts = Arrays.copyOf(counts, depth * 2);
+            pathNames = Arrays.copyOf(pathNames, depth * 2);
+        }
+        maps[depth] = map;
+        remaining[depth] = containerLength < 0 ? -1 : map ? containerLength * 2 : containerLength;
+        counts[depth] = 0;
+        pathNames[depth] = null;
+        depth++;
+        peeked = null;
+    }
+
+    private void pop() {
+        depth--;
+        peeked = null;
+    }
+
+    @NotNull
+    private String locationString() {
+        return " at path " + getPath();
+    }
+
+    @NotNull
+    private String getPath(boolean previous) {
+        final StringBuilder path = new StringBuilder("$");
+        for (int i = 0; i < depth; i++) {
+            if (maps[i]) {
+                if (pathNames[i] != null) {
+                    path.append('.').append(pathNames[i]);
+                }
+            } else {
+                // Counts include the items being read
+                final boolean last = i == depth - 1;
+                long index = counts[i];
+                if (!last || peeked != null && peeked != JsonToken.END_ARRAY) {
+                    index--;
+                }
+                if (previous && last && index > 0) {
+                    index--;
+                }
+                path.append('[').append(index).append(']');
+            }
+        }
+        return path.toString();
+    }
+
+    /**
+     * Reads the next item header or scalar, or the end of the current container.
+     */
+    @NotNull
+    private JsonToken readToken() throws IOException {
+        if (depth == 0) {
+            if (started) {
+                return JsonToken.END_DOCUMENT;
+            }
+            started = true;
+            final int initialByte = in.read();
+            return initialByte < 0 ? JsonToken.NULL : readItem(initialByte, false);
+        }
+        final int index = depth - 1;
+        final boolean map = maps[index];
+        int initialByte = -1;
+        if (remaining[index] < 0) {
+            initialByte = readByte();
+            if (initialByte == BREAK) {
+                if (map && counts[index] % 2 != 0) {
+                    throw new JsonSyntaxException("CBOR map entry has no value" + locationString());
+                }
+                remaining[index] = 0;
+            }
+        }
+        if (remaining[index] == 0) {
+            return map ? JsonToken.END_OBJECT : JsonToken.END_ARRAY;
+        }
+        if (remaining[index] > 0) {
+            remaining[index]--;
+        }
+        final boolean key = map && counts[index] % 2 == 0;
+        counts[index]++;
+        return readItem(initialByte < 0 ? readByte() : initialByte, key);
+    }
+
+    @NotNull
+    private JsonToken readItem(int initialByte, boolean key) throws IOException {
+        final JsonToken token = readValue(initialByte);
+        if (!key) {
+            return token;
+        }
+        stringValue = switch (token) {
+            case STRING -> bytesValue != null ? Base64.encode(bytesValue) : stringValue;
+            case NUMBER -> getNumberText();
+            case BOOLEAN -> Boolean.toString(booleanValue);
+            case NULL -> "null";
+            default -> throw new JsonSyntaxException("Unsupported CBOR map key" + locationString());
+        };
+        bytesValue = null;
+        return JsonToken.NAME;
+    }
+
+    @NotNull
+    private JsonToken readValue(int initialByte) throws IOException {
+        int itemByte = initialByte;
+        while (itemByte >>> 5 == MAJOR_TAG) {
+            final long tag = readArgument(itemByte & 0x1f);
+            itemByte = readByte();
+            if ((tag == TAG_POSITIVE_BIGNUM || tag == TAG_NEGATIVE_BIGNUM) && itemByte >>> 5 == MAJOR_BYTES) {
+                return setBigNumber(readBignum(tag, itemByte));
+            }
+            if (tag == TAG_DECIMAL_FRACTION) {
+                if (itemByte != (MAJOR_ARRAY << 5 | 2)) {
+                    throw new JsonSyntaxException("Invalid CBOR decimal fraction" + locationString());
+                }
+                final BigInteger scale = readInteger(readByte()).negate();
+                final BigInteger mantissa = readInteger(readByte());
+                if (scale.bitLength() >= Integer.SIZE) {
+                    throw new JsonSyntaxException("CBOR decimal fraction exponent is out of range" + locationString());
+                }
+                return setBigNumber(new BigDecimal(mantissa, scale.intValue()));
+            }
+            // Other tags carry no meaning for the RPC layer
+        }
+        final int info = itemByte & 0x1f;
+        switch (itemByte >>> 5) {
+            case MAJOR_UNSIGNED -> {
+                final long value = readArgument(info);
+                return value >= 0 ? setLong(value) : setBigNumber(toUnsigned(value));
+            }
+            case MAJOR_NEGATIVE -> {
+                final long value = readArgument(info);
+                return value >= 0 ? setLong(-1 - value) : setBigNumber(BigInteger.ONE.negate().subtract(toUnsigned(value)));
+            }
+            case MAJOR_BYTES -> {
+                bytesValue = readString(MAJOR_BYTES, info);
+                return JsonToken.STRING;
+            }
+            case MAJOR_TEXT -> {
+                stringValue = new String(readString(MAJOR_TEXT, info), StandardCharsets.UTF_8);
+                return JsonToken.STRING;
+            }
+            case MAJOR_ARRAY -> {
+                containerLength = readLength(info);
+                return JsonToken.BEGIN_ARRAY;
+            }
+            case MAJOR_MAP -> {
+                containerLength = readLength(info);
+                return JsonToken.BEGIN_OBJECT;
+            }
+            default -> {
+                return readSimpleValue(info);
+            }
+        }
+    }
+
+    @NotNull
+    private JsonToken readSimpleValue(int info) throws IOException {
+        switch (info) {
+            case FALSE & 0x1f, TRUE & 0x1f -> {
+                booleanValue = info == (TRUE & 0x1f);
+                return JsonToken.BOOLEAN;
+            }
+            case NULL & 0x1f, UNDEFINED & 0x1f -> {
+                return JsonToken.NULL;
+            }
+            case HALF_FLOAT & 0x1f -> {
+                return setDouble(halfToDouble(in.readUnsignedShort()));
+            }
+            case SINGLE_FLOAT & 0x1f -> {
+                return setDouble(Float.intBitsToFloat(in.readInt()));
+            }
+            case DOUBLE_FLOAT & 0x1f -> {
+                return setDouble(Double.longBitsToDouble(in.readLong()));
+            }
+            default -> throw new JsonSyntaxException("Unsupported CBOR simple value " + info + locationString());
+        }
+    }
+
+    @NotNull
+    private JsonToken setLong(long value) {
+        numberType = NUMBER_LONG;
+        longValue = value;
+        return JsonToken.NUMBER;
+    }
+
+    @NotNull
+    private JsonToken setDouble(double value) {
+        numberType = NUMBER_DOUBLE;
+        doubleValue = value;
+        return JsonToken.NUMBER;
+    }
+
+    @NotNull
+    private JsonToken setBigNumber(@NotNull Number value) {
+        numberType = NUMBER_BIG;
+        bigValue = value;
+        return JsonToken.NUMBER;
+    }
+
+    /**
+     * Reads integer, possibly a bignum.
+     */
+    @NotNull
+    private BigInteger readInteger(int initialByte) throws IOException {
+        switch (initialByte >>> 5) {
+            case MAJOR_UNSIGNED: {
+                final long value = readArgument(initialByte & 0x1f);
+                return value >= 0 ? BigInteger.valueOf(value) : toUnsigned(value);
+            }
+            case MAJOR_NEGATIVE: {
+                final long value = readArgument(initialByte & 0x1f);
+                return value >= 0 ? BigInteger.valueOf(-1 - value) : BigInteger.ONE.negate().subtract(toUnsigned(value));
+            }
+            case MAJOR_TAG: {
+                final long tag = readArgument(initialByte & 0x1f);
+                final int contentByte = readByte();
+                if ((tag == TAG_POSITIVE_BIGNUM || tag == TAG_NEGATIVE_BIGNUM) && contentByte >>> 5 == MAJOR_BYTES) {
+                    return readBignum(tag, contentByte);
+                }
+                break;
+            }
+        }
+        throw new JsonSyntaxException("Invalid CBOR integer" + locationString());
+    }
+
+    @NotNull
+    private BigInteger readBignum(long tag, int initialByte) throws IOException {
+        final BigInteger value = new BigInteger(1, readString(MAJOR_BYTES, initialByte & 0x1f));
+        return tag == TAG_POSITIVE_BIGNUM ? value : BigInteger.ONE.negate().subtract(value);
+    }
+
+    @NotNull
+    private byte[] readString(int majorType, int info) throws IOException {
+        final long length = readLength(info);
+        if (length >= 0) {
+            final byte[] bytes = in.readNBytes((int) length);
+            if (bytes.length < length) {
+                throw new EOFException();
+            }
+            return bytes;
+        }
+        // Indefinite-length string is a sequence of definite-length chunks
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        for (int b = readByte(); b != BREAK; b = readByte()) {
+            if (b >>> 5 != majorType || (b & 0x1f) == 31) {
+                throw new JsonSyntaxException("Invalid CBOR string chunk" + locationString());
+            }
+            buffer.write(readString(majorType, b & 0x1f));
+        }
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Returns length of an item, or -1 for indefinite length.
+     */
+    private long readLength(int info) throws IOException {
+        if (info == 31) {
+            return -1;
+        }
+        final long length = readArgument(info);
+        if (length < 0 || length > Integer.MAX_VALUE) {
+            throw new JsonSyntaxException("CBOR item is too long: " + Long.toUnsignedString(length) + locationString());
+        }
+        return length;
+    }
+
+    /**
+     * Reads item argument. Values above {@link Long#MAX_VALUE} are returned as negative numbers.
+     */
+    private long readArgument(int info) throws IOException {
+        if (info < 24) {
+            return info;
+        }
+        return switch (info) {
+            case 24 -> in.readUnsignedByte();
+            case 25 -> in.readUnsignedShort();
+            case 26 -> in.readInt() & 0xffffffffL;
+            case 27 -> in.readLong();
+            default -> throw new JsonSyntaxException("Invalid CBOR item argument " + info + locationString());
+        };
+    }
+
+    private int readByte() throws IOException {
+        final int b = in.read();
+        if (b < 0) {
+            throw new EOFException();
+        }
+        return b;
+    }
+
+    @NotNull
+    private static BigInteger toUnsigned(long value) {
+        return new BigInteger(Long.toUnsignedString(value));
+    }
+
+    private static double halfToDouble(int half) {
+        final int exponent = (half >> 10) & 0x1f;
+        final int mantissa = half & 0x3ff;
+        final double value;
+        if (exponent == 0) {
+            value = mantissa * 0x1p-24;
+        } else if (exponent != 31) {
+            value = (mantissa + 1024) * Math.pow(2, exponent - 25);
+        } else {
+            value = mantissa == 0 ? Double.POSITIVE_INFINITY : Double.NaN;
+        }
+        return (half & 0x8000) != 0 ? -value : value;
+    }
+}
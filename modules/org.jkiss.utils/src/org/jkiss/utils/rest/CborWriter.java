@@ -0,0 +1,400 @@
+/*
+ * DBeaver - Universal Database Manager
+ * Copyright (C) 2010-2024 DBeaver Corp and others
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jkiss.utils.rest;
+
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+import org.jkiss.code.NotNull;
+import org.jkiss.code.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes values in CBOR format (RFC 8949) through the {@link JsonWriter} API, so any Gson type adapter can use it.
+ * Arrays and objects are written as indefinite-length items, as their sizes are not known in advance.
+ */
+public class CborWriter extends JsonWriter {
+
+    private static final Writer UNWRITABLE_WRITER = new Writer() {
+        @Override
+        public void write(@NotNull char[] buffer, int offset, int counter) {
+            throw new AssertionError();
+        }
+
+        @Override
+        public void flush() {
+            throw new AssertionError();
+        }
+
+        @Override
+        public void close() {
+            throw new AssertionError();
+        }
+    };
+
+    static final int MAJOR_UNSIGNED = 0;
+    static final int MAJOR_NEGATIVE = 1;
+    static final int MAJOR_BYTES = 2;
+    static final int MAJOR_TEXT = 3;
+    static final int MAJOR_ARRAY = 4;
+    static final int MAJOR_MAP = 5;
+    static final int MAJOR_TAG = 6;
+
+    static final int TAG_POSITIVE_BIGNUM = 2;
+    static final int TAG_NEGATIVE_BIGNUM = 3;
+    static final int TAG_DECIMAL_FRACTION = 4;
+
+    static final int FALSE = 0xf4;
+    static final int TRUE = 0xf5;
+    static final int NULL = 0xf6;
+    static final int UNDEFINED = 0xf7;
+    static final int HALF_FLOAT = 0xf9;
+    static final int SINGLE_FLOAT = 0xfa;
+    static final int DOUBLE_FLOAT = 0xfb;
+    static final int INDEFINITE_ARRAY = 0x9f;
+    static final int INDEFINITE_MAP = 0xbf;
+    static final int BREAK = 0xff;
+
+    private final OutputStream out;
+    private final byte[] buffer = new byte[8192];
+    private int count;
+
+    private boolean[] objectStack = new boolean[32];
+    private int depth;
+    private String deferredName;
+
+    public CborWriter(@NotNull OutputStream out) {
+        super(UNWRITABLE_WRITER);
+        this.out = out;
+    }
+
+    @Override
+    public CborWriter beginArray() throws IOException {
+        writeDeferredName();
+        push(false);
+        writeByte(INDEFINITE_ARRAY);
+        return this;
+    }
+
+    @Override
+    public CborWriter endArray() throws IOException {
+        pop(false);
+        writeByte(BREAK);
+        return this;
+    }
+
+    @Override
+    public CborWriter beginObject() throws IOException {
+        writeDeferredName();
+        push(true);
+        writeByte(INDEFINITE_MAP);
+        return this;
+    }
+
+    @Override
+    public CborWriter endObject() throws IOException {
+        pop(true);
+        writeByte(BREAK);
+        return this;
+    }
+
+    @Override
+    public CborWriter name(@NotNull String name) throws IOException {
+        Objects.requireNonNull(name, "name == null");
+        if (deferredName != null || depth == 0 || !objectStack[depth - 1]) {
+            throw new IllegalStateException("Unexpected name " + name);
+        }
+        deferredName = name;
+        return this;
+    }
+
+    @Override
+    public CborWriter value(@Nullable String value) throws IOException {
+        if (value == null) {
+            return nullValue();
+        }
+        writeDeferredName();
+        writeText(value);
+        return this;
+    }
+
+    /**
+     * Writes value as CBOR byte string.
+     */
+    public CborWriter value(@Nullable byte[] value) throws IOException {
+        if (value == null) {
+            return nullValue();
+        }
+        writeDeferredName();
+        writeHeader(MAJOR_BYTES, value.length);
+        writeBytes(value, 0, value.length);
+        return this;
+    }
+
+    @Override
+    public CborWriter jsonValue(@Nullable String value) throws IOException {
+        if (value == null) {
+            return nullValue();
+        }
+        RpcConstants.DEFAULT_GSON.toJson(JsonParser.parseString(value), this);
+        return this;
+    }
+
+    @Override
+    public CborWriter nullValue() throws IOException {
+        if (deferredName != null && !getSerializeNulls()) {
+            // Skip the name and the value
+            deferredName = null;
+            return this;
+        }
+        writeDeferredName();
+        writeByte(NULL);
+        return this;
+    }
+
+    @Override
+    public CborWriter value(boolean value) throws IOException {
+        writeDeferredName();
+        writeByte(value ? TRUE : FALSE);
+        return this;
+    }
+
+    @Override
+    public CborWriter value(@Nullable Boolean value) throws IOException {
+        if (value == null) {
+            return nullValue();
+        }
+        return value(value.booleanValue());
+    }
+
+    @Override
+    public CborWriter value(float value) throws IOException {
+        writeDeferredName();
+        writeFloat(value);
+        return this;
+    }
+
+    @Override
+    public CborWriter value(double value) throws IOException {
+        writeDeferredName();
+        writeDouble(value);
+        return this;
+    }
+
+    @Override
+    public CborWriter value(long value) throws IOException {
+        writeDeferredName();
+        writeLong(value);
+        return this;
+    }
+
+    @Override
+    public CborWriter value(@Nullable Number value) throws IOException {
+        if (value == null) {
+            return nullValue();
+        }
+        writeDeferredName();
+        if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte
+            || value instanceof AtomicInteger || value instanceof AtomicLong) {
+            writeLong(value.longValue());
+        } else if (value instanceof Float) {
+            writeFloat(value.floatValue());
+        } else if (value instanceof Double) {
+            writeDouble(value.doubleValue());
+        } else if (value instanceof BigInteger bigInteger) {
+            writeBigInteger(bigInteger);
+        } else {
+            // BigDecimal or lazily parsed number
+            final BigDecimal decimal = value instanceof BigDecimal bd ? bd : new BigDecimal(value.toString());
+            writeDecimal(decimal);
+        }
+        return this;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flushBuffer();
+        out.close();
+        if (depth > 0) {
+            throw new IOException("Incomplete document");
+        }
+    }
+
+    private void writeDeferredName() throws IOException {
+        if (deferredName != null) {
+            writeText(deferredName);
+            deferredName = null;
+        } else if (depth > 0 && objectStack[depth - 1]) {
+            throw new IllegalStateException("Object value without a name");
+        }
+    }
+
+    private void push(boolean object) {
+        if (depth == objectStack.length) {
+            objectStack = Arrays.copyOf(objectStack, depth * 2);
+        }
+        objectStack[depth++] = object;
+    }
+
+    private void pop(boolean object) {
+        if (depth == 0 || objectStack[depth - 1] != object || deferredName != null) {
+            throw new IllegalStateException(object ? "Nesting problem: unexpected end of object" : "Nesting problem: unexpected end of array");
+        }
+        depth--;
+    }
+
+    private void writeLong(long value) throws IOException {
+        if (value >= 0) {
+            writeHeader(MAJOR_UNSIGNED, value);
+        } else {
+            writeHeader(MAJOR_NEGATIVE, -1 - value);
+        }
+    }
+
+    private void writeFloat(float value) throws IOException {
+        final int bits = Float.floatToIntBits(value);
+        ensureCapacity(5);
+        buffer[count++] = (byte) SINGLE_FLOAT;
+        putInt(bits);
+    }
+
+    private void writeDouble(double value) throws IOException {
+        if ((float) value == value || Double.isNaN(value)) {
+            // Single precision is enough to represent the value exactly
+            writeFloat((float) value);
+            return;
+        }
+        final long bits = Double.doubleToLongBits(value);
+        ensureCapacity(9);
+        buffer[count++] = (byte) DOUBLE_FLOAT;
+        putLong(bits);
+    }
+
+    private void writeBigInteger(@NotNull BigInteger value) throws IOException {
+        if (value.bitLength() < 64) {
+            writeLong(value.longValue());
+            return;
+        }
+        final boolean negative = value.signum() < 0;
+        writeHeader(MAJOR_TAG, negative ? TAG_NEGATIVE_BIGNUM : TAG_POSITIVE_BIGNUM);
+        byte[] bytes = (negative ? BigInteger.ONE.negate().subtract(value) : value).toByteArray();
+        int offset = bytes.length > 1 && bytes[0] == 0 ? 1 : 0;
+        writeHeader(MAJOR_BYTES, bytes.length - offset);
+        writeBytes(bytes, offset, bytes.length - offset);
+    }
+
+    private void writeDecimal(@NotNull BigDecimal value) throws IOException {
+        if (value.scale() <= 0 && value.precision() - value.scale() < 19) {
+            writeLong(value.longValueExact());
+            return;
+        }
+        final double doubleValue = value.doubleValue();
+        if (!Double.isInfinite(doubleValue) && new BigDecimal(doubleValue).compareTo(value) == 0) {
+            writeDouble(doubleValue);
+            return;
+        }
+        // Decimal fraction: [exponent, mantissa]
+        writeHeader(MAJOR_TAG, TAG_DECIMAL_FRACTION);
+        writeHeader(MAJOR_ARRAY, 2);
+        writeLong(-value.scale());
+        writeBigInteger(value.unscaledValue());
+    }
+
+    private void writeText(@NotNull String value) throws IOException {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeHeader(MAJOR_TEXT, bytes.length);
+        writeBytes(bytes, 0, bytes.length);
+    }
+
+    private void writeHeader(int majorType, long argument) throws IOException {
+        ensureCapacity(9);
+        final int type = majorType << 5;
+        if (argument < 24) {
+            buffer[count++] = (byte) (type | argument);
+        } else if (argument <= 0xff) {
+            buffer[count++] = (byte) (type | 24);
+            buffer[count++] = (byte) argument;
+        } else if (argument <= 0xffff) {
+            buffer[count++] = (byte) (type | 25);
+            buffer[count++] = (byte) (argument >> 8);
+            buffer[count++] = (byte) argument;
+        } else if (argument <= 0xffffffffL) {
+            buffer[count++] = (byte) (type | 26);
+            putInt((int) argument);
+        } else {
+            buffer[count++] = (byte) (type | 27);
+            putLong(argument);
+        }
+    }
+
+    private void putInt(int value) {
+        buffer[count++] = (byte) (value >> 24);
+        buffer[count++] = (byte) (value >> 16);
+        buffer[count++] = (byte) (value >> 8);
+        buffer[count++] = (byte) value;
+    }
+
+    private void putLong(long value) {
+        putInt((int) (value >> 32));
+        putInt((int) value);
+    }
+
+    private void writeByte(int value) throws IOException {
+        ensureCapacity(1);
+        buffer[count++] = (byte) value;
+    }
+
+    private void writeBytes(@NotNull byte[] bytes, int offset, int length) throws IOException {
+        if (length > buffer.length - count) {
+            flushBuffer();
+            if (length > buffer.length) {
+                out.write(bytes, offset, length);
+                return;
+            }
+        }
+        System.arraycopy(bytes, offset, buffer, count, length);
+        count += length;
+    }
+
+    private void ensureCapacity(int size) throws IOException {
+        if (buffer.length - count < size) {
+            flushBuffer();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (count > 0) {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+    }
+}
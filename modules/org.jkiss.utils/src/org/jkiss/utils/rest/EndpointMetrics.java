@@ -0,0 +1,172 @@
+/*
+ * DBeaver - Universal Database Manager
+ * Copyright (C) 2010-2024 DBeaver Corp and others
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jkiss.utils.rest;
+
+import org.jkiss.code.NotNull;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of a {@link RestServer} mapping. Counters are striped, so recording does not contend
+ * between request threads. Byte counts are payload sizes before compression.
+ */
+public final class EndpointMetrics {
+
+    @NotNull
+    private final String endpoint;
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder inFlight = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LatencyHistogram deserializationTime = new LatencyHistogram();
+    private final LatencyHistogram invocationTime = new LatencyHistogram();
+    private final LatencyHistogram serializationTime = new LatencyHistogram();
+
+    EndpointMetrics(@NotNull String endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    @NotNull
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    public long getRequestCount() {
+        return requests.sum();
+    }
+
+    /**
+     * Number of requests which failed: invalid requests, method errors and errors of sending the response.
+     */
+    public long getErrorCount() {
+        return errors.sum();
+    }
+
+    /**
+     * Number of requests being processed right now.
+     */
+    public long getInFlight() {
+        return inFlight.sum();
+    }
+
+    /**
+     * Number of requests which shared invocation of an identical concurrent request,
+     * see {@link RestServer.Builder#setRequestCoalescing}.
+     */
+    public long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    /**
+     * Total processing time, from the start of request processing till the response is sent.
+     */
+    @NotNull
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    @NotNull
+    public LatencyHistogram getDeserializationTime() {
+        return deserializationTime;
+    }
+
+    @NotNull
+    public LatencyHistogram getInvocationTime() {
+        return invocationTime;
+    }
+
+    @NotNull
+    public LatencyHistogram getSerializationTime() {
+        return serializationTime;
+    }
+
+    @NotNull
+    public Snapshot getSnapshot() {
+        return new Snapshot(
+            getRequestCount(),
+            getErrorCount(),
+            getInFlight(),
+            getCoalescedCount(),
+            getBytesIn(),
+            getBytesOut(),
+            latency.getSnapshot(),
+            deserializationTime.getSnapshot(),
+            invocationTime.getSnapshot(),
+            serializationTime.getSnapshot());
+    }
+
+    void requestStarted() {
+        requests.increment();
+        inFlight.increment();
+    }
+
+    void requestCompleted(boolean success, long nanos) {
+        inFlight.decrement();
+        if (!success) {
+            errors.increment();
+        }
+        latency.record(nanos);
+    }
+
+    /**
+     * Completes request which failed before it could be responded.
+     */
+    void requestAborted() {
+        inFlight.decrement();
+        errors.increment();
+    }
+
+    void requestCoalesced() {
+        coalesced.increment();
+    }
+
+    void addBytesIn(long count) {
+        bytesIn.add(count);
+    }
+
+    void addBytesOut(long count) {
+        bytesOut.add(count);
+    }
+
+    /**
+     * Point-in-time view of endpoint metrics. Durations are in microseconds.
+     */
+    public record Snapshot(
+        long requests,
+        long errors,
+        long inFlight,
+        long coalesced,
+        long bytesIn,
+        long bytesOut,
+        @NotNull LatencyHistogram.Snapshot latency,
+        @NotNull LatencyHistogram.Snapshot deserialization,
+        @NotNull LatencyHistogram.Snapshot invocation,
+        @NotNull LatencyHistogram.Snapshot serialization
+    ) {
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * DBeaver - Universal Database Manager
+ * Copyright (C) 2010-2024 DBeaver Corp and others
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jkiss.utils.rest;
+
+import org.jkiss.code.NotNull;
+import org.jkiss.code.Nullable;
+
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * {@link HttpClient} shared by {@link HttpClientTransport}s, so clients of the same server reuse its connections
+ * (or a single HTTP/2 connection) and response processing threads.
+ * <p>
+ * The pool counts transports using it. The client and its threads are created on the first request
+ * and released once the last transport is closed, so creating a client proxy does not start threads.
+ */
+public final class HttpClientPool {
+
+    private static final HttpClientPool DEFAULT = builder().create();
+
+    @Nullable
+    private final Executor executor;
+    private final boolean virtualThreads;
+    @Nullable
+    private final HttpClient.Version version;
+    @Nullable
+    private final Duration connectTimeout;
+
+    private int references;
+    private HttpClient client;
+    private ExecutorService ownExecutor;
+
+    private HttpClientPool(@NotNull Builder builder) {
+        this.executor = builder.executor;
+        this.virtualThreads = builder.virtualThreads;
+        this.version = builder.version;
+        this.connectTimeout = builder.connectTimeout;
+    }
+
+    /**
+     * Returns pool used by clients which were not given one explicitly.
+     */
+    @NotNull
+    public static HttpClientPool getDefault() {
+        return DEFAULT;
+    }
+
+    @NotNull
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Number of open transports using this pool.
+     */
+    public synchronized int getReferenceCount() {
+        return references;
+    }
+
+    synchronized void acquire() {
+        references++;
+    }
+
+    synchronized void release() {
+        if (references > 0 && --references == 0) {
+            // Threads of the client stop once it is not referenced anymore
+            client = null;
+            if (ownExecutor != null) {
+                ownExecutor.shutdown();
+                ownExecutor = null;
+            }
+        }
+    }
+
+    /**
+     * Returns the client, creating it on the first request.
+     *
+     * @throws IllegalStateException if no open transport uses the pool
+     */
+    @NotNull
+    synchronized HttpClient getClient() {
+        if (references == 0) {
+            // A client created now would never be released
+            throw new IllegalStateException("HTTP client pool is not used by any open transport");
+        }
+        if (client == null) {
+            final HttpClient.Builder builder = HttpClient.newBuilder();
+            if (executor != null) {
+                builder.executor(executor);
+            } else {
+                // Response processing must not be serialized when clients are shared between threads
+                ownExecutor = virtualThreads ? createVirtualThreadExecutor() : null;
+                if (ownExecutor == null) {
+                    ownExecutor = Executors.newCachedThreadPool();
+                }
+                builder.executor(ownExecutor);
+            }
+            if (version != null) {
+                builder.version(version);
+            }
+            if (connectTimeout != null) {
+                builder.connectTimeout(connectTimeout);
+            }
+            client = builder.build();
+        }
+        return client;
+    }
+
+    @Nullable
+    private static ExecutorService createVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "references=" + getReferenceCount();
+    }
+
+    public static final class Builder {
+        private Executor executor;
+        private boolean virtualThreads;
+        private HttpClient.Version version;
+        private Duration connectTimeout;
+
+        private Builder() {
+        }
+
+        /**
+         * Sets executor of response processing. The executor is not shut down by the pool.
+         * By default, a cached thread pool is created with the client.
+         */
+        @NotNull
+        public Builder setExecutor(@Nullable Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        /**
+         * Processes responses in virtual threads (Java 21+), unless an executor is set.
+         * On older Java versions a cached thread pool is used instead.
+         */
+        @NotNull
+        public Builder setVirtualThreads(boolean virtualThreads) {
+            this.virtualThreads = virtualThreads;
+            return this;
+        }
+
+        /**
+         * Sets preferred HTTP version. {@link HttpClient.Version#HTTP_2} (the JDK default) multiplexes requests over
+         * a single connection if the server supports it: plain HTTP connections are upgraded, TLS ones negotiate it.
+         * {@link HttpClient.Version#HTTP_1_1} avoids upgrade attempts with servers which do not support HTTP/2,
+         * such as {@link RestServer} on the JDK built-in server.
+         */
+        @NotNull
+        public Builder setVersion(@Nullable HttpClient.Version version) {
+            this.version = version;
+            return this;
+        }
+
+        @NotNull
+        public Builder setConnectTimeout(@Nullable Duration connectTimeout) {
+            this.connectTimeout = connectTimeout;
+            return this;
+        }
+
+        @NotNull
+        public HttpClientPool create() {
+            return new HttpClientPool(this);
+        }
+    }
+}
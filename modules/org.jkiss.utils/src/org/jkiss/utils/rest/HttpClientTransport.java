@@ -0,0 +1,162 @@
+/*
+ * DBeaver - Universal Database Manager
+ * Copyright (C) 2010-2024 DBeaver Corp and others
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jkiss.utils.rest;
+
+import org.jkiss.code.NotNull;
+import org.jkiss.code.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.CookieManager;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Transport based on the JDK {@link HttpClient}. Transports share the client of their {@link HttpClientPool},
+ * each transport keeps its own cookies.
+ */
+public class HttpClientTransport implements RpcTransport {
+    private static final Logger log = Logger.getLogger(HttpClientTransport.class.getName());
+
+    private final HttpClientPool pool;
+    private final CookieManager cookieManager = new CookieManager();
+    private volatile boolean closed;
+
+    public HttpClientTransport() {
+        this(HttpClientPool.getDefault());
+    }
+
+    public HttpClientTransport(@NotNull HttpClientPool pool) {
+        this.pool = pool;
+        pool.acquire();
+    }
+
+    @NotNull
+    @Override
+    public Response send(@NotNull Request request) throws IOException, InterruptedException {
+        final HttpResponse<InputStream> response = getClient().send(createHttpRequest(request), HttpResponse.BodyHandlers.ofInputStream());
+        return new ClientResponse(storeCookies(response), response.body());
+    }
+
+    @NotNull
+    @Override
+    public CompletableFuture<Response> sendAsync(@NotNull Request request) {
+        final HttpClient client;
+        final HttpRequest httpRequest;
+        try {
+            client = getClient();
+            httpRequest = createHttpRequest(request);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        // The body is received without blocking client threads, so it can be parsed on any thread
+        final CompletableFuture<HttpResponse<byte[]>> exchange =
+            client.sendAsync(httpRequest, HttpResponse.BodyHandlers.ofByteArray());
+        final CompletableFuture<Response> result = exchange.thenApply(
+            response -> new ClientResponse(storeCookies(response), new ByteArrayInputStream(response.body())));
+        result.whenComplete((response, error) -> {
+            if (result.isCancelled()) {
+                // Nobody waits for the response: abort the exchange
+                exchange.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            pool.release();
+        }
+    }
+
+    @NotNull
+    private HttpClient getClient() throws IOException {
+        if (closed) {
+            throw new IOException("Transport is closed");
+        }
+        try {
+            return pool.getClient();
+        } catch (IllegalStateException e) {
+            // Closed concurrently, the pool has released its client
+            throw new IOException("Transport is closed", e);
+        }
+    }
+
+    @NotNull
+    private HttpRequest createHttpRequest(@NotNull Request request) throws IOException {
+        final HttpRequest.Builder builder = HttpRequest.newBuilder()
+            .uri(request.endpoint())
+            .POST(HttpRequest.BodyPublishers.ofByteArray(request.body(), 0, request.bodyLength()));
+        for (Map.Entry<String, String> header : request.headers().entrySet()) {
+            builder.header(header.getKey(), header.getValue());
+        }
+        // The pool client is shared, so cookies are handled by the transport rather than by the client
+        for (Map.Entry<String, List<String>> header : cookieManager.get(request.endpoint(), Map.of()).entrySet()) {
+            for (String value : header.getValue()) {
+                builder.header(header.getKey(), value);
+            }
+        }
+        if (request.timeout() > 0) {
+            builder.timeout(Duration.ofMillis(request.timeout()));
+        }
+        return builder.build();
+    }
+
+    @NotNull
+    private <T> HttpResponse<T> storeCookies(@NotNull HttpResponse<T> response) {
+        try {
+            cookieManager.put(response.uri(), response.headers().map());
+        } catch (IOException e) {
+            log.log(Level.FINE, "Failed to store cookies of " + response.uri(), e);
+        }
+        return response;
+    }
+
+    private record ClientResponse(@NotNull HttpResponse<?> response, @NotNull InputStream body) implements Response {
+        @Override
+        public int getStatusCode() {
+            return response.statusCode();
+        }
+
+        @Nullable
+        @Override
+        public String getHeader(@NotNull String name) {
+            return response.headers().firstValue(name).orElse(null);
+        }
+
+        @NotNull
+        @Override
+        public InputStream getBody() {
+            return body;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * DBeaver - Universal Database Manager
+ * Copyright (C) 2010-2024 DBeaver Corp and others
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jkiss.utils.rest;
+
+import org.jkiss.code.NotNull;
+import org.jkiss.code.Nullable;
+import org.jkiss.utils.CommonUtils;
+import org.jkiss.utils.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.zip.*;
+
+/**
+ * HTTP content encoding support (gzip and deflate).
+ */
+public final class HttpCompression {
+
+    public static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    public static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+    public static final String IDENTITY = "identity";
+
+    /**
+     * Value of {@code Accept-Encoding} header sent by clients.
+     */
+    public static final String SUPPORTED_ENCODINGS = GZIP + ", " + DEFLATE;
+
+    /**
+     * Bodies smaller than this are not worth compressing: the gain is eaten by the compression headers and CPU.
+     */
+    public static final int DEFAULT_THRESHOLD = 1024;
+
+    private HttpCompression() {
+        // prevents instantiation
+    }
+
+    /**
+     * Chooses response encoding from the {@code Accept-Encoding} header value.
+     * The supported encoding with the highest quality wins, gzip is preferred over deflate if their qualities are equal.
+     * Encodings with zero quality are not acceptable. Explicitly listed {@code identity} with a higher quality
+     * than any supported encoding disables compression.
+     *
+     * @return supported encoding or {@code null} if response must not be compressed
+     */
+    @Nullable
+    public static String negotiate(@Nullable String acceptEncoding) {
+        if (CommonUtils.isEmptyTrimmed(acceptEncoding)) {
+            return null;
+        }
+        // Qualities of listed encodings, -1 if not listed
+        double gzip = -1;
+        double deflate = -1;
+        double identity = -1;
+        double any = -1;
+        for (String item : acceptEncoding.split(",")) {
+            final int paramsPos = item.indexOf(';');
+            final String encoding = (paramsPos < 0 ? item : item.substring(0, paramsPos)).trim().toLowerCase(Locale.ENGLISH);
+            final double quality = paramsPos < 0 ? 1 : getQuality(item.substring(paramsPos + 1));
+            switch (encoding) {
+                case GZIP, "x-gzip" -> gzip = Math.max(gzip, quality);
+                case DEFLATE -> deflate = Math.max(deflate, quality);
+                case IDENTITY -> identity = Math.max(identity, quality);
+                case "*" -> any = Math.max(any, quality);
+                default -> {
+                    // Not supported
+                }
+            }
+        }
+        // The wildcard matches encodings which are not listed explicitly
+        if (gzip < 0) {
+            gzip = any;
+        }
+        if (deflate < 0) {
+            deflate = any;
+        }
+        final String encoding = gzip >= deflate ? GZIP : DEFLATE;
+        final double quality = Math.max(gzip, deflate);
+        return quality > 0 && quality >= identity ? encoding : null;
+    }
+
+    /**
+     * Returns value of the {@code q} parameter, 1 if there is none, 0 if it is invalid.
+     */
+    private static double getQuality(@NotNull String params) {
+        for (String param : params.split(";")) {
+            final String[] pair = param.split("=", 2);
+            if (pair.length == 2 && pair[0].trim().equalsIgnoreCase("q")) {
+                try {
+                    final double quality = Double.parseDouble(pair[1].trim());
+                    return quality >= 0 && quality <= 1 ? quality : 0;
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+
+    public static boolean isSupported(@Nullable String contentEncoding) {
+        return CommonUtils.isEmptyTrimmed(contentEncoding) || getEncoding(contentEncoding) != null;
+    }
+
+    /**
+     * Wraps stream with a compressor. Closing the returned stream finishes compression and closes the original stream.
+     */
+    @NotNull
+    public static OutputStream compress(@NotNull OutputStream out, @NotNull String encoding) throws IOException {
+        final String contentEncoding = getEncoding(encoding);
+        if (contentEncoding == null) {
+            throw new IOException("Unsupported content encoding: " + encoding);
+        }
+        return switch (contentEncoding) {
+            case GZIP -> new GZIPOutputStream(out, IOUtils.DEFAULT_BUFFER_SIZE);
+            case DEFLATE -> new DeflaterOutputStream(out, new Deflater(), IOUtils.DEFAULT_BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        // Deflater passed to the constructor is not released by the stream itself
+                        def.end();
+                    }
+                }
+            };
+            default -> out;
+        };
+    }
+
+    /**
+     * Wraps stream with a decompressor according to {@code Content-Encoding} header value.
+     * Stream is returned as is if there is no encoding.
+     */
+    @NotNull
+    public static InputStream decompress(@NotNull InputStream in, @Nullable String contentEncoding) throws IOException {
+        if (CommonUtils.isEmptyTrimmed(contentEncoding)) {
+            return in;
+        }
+        final String encoding = getEncoding(contentEncoding);
+        if (encoding == null) {
+            throw new IOException("Unsupported content encoding: " + contentEncoding);
+        }
+        return switch (encoding) {
+            case GZIP -> new GZIPInputStream(in, IOUtils.DEFAULT_BUFFER_SIZE);
+            case DEFLATE -> new InflaterInputStream(in, new Inflater(), IOUtils.DEFAULT_BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        inf.end();
+                    }
+                }
+            };
+            default -> in;
+        };
+    }
+
+    @Nullable
+    private static String getEncoding(@NotNull String contentEncoding) {
+        return switch (contentEncoding.trim().toLowerCase(Locale.ENGLISH)) {
+            case GZIP, "x-gzip" -> GZIP;
+            case DEFLATE -> DEFLATE;
+            case IDENTITY -> IDENTITY;
+            default -> null;
+        };
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * DBeaver - Universal Database Manager
+ * Copyright (C) 2010-2024 DBeaver Corp and others
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jkiss.utils.rest;
+
+import org.jkiss.code.NotNull;
+import org.jkiss.code.Nullable;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.function.BiConsumer;
+
+/**
+ * HTTP/1.1 message framing used by transports not based on the JDK HTTP client and server.
+ * Only the framing the paired {@link UnixSocketTransport} and {@link UnixSocketHttpServer} use is supported:
+ * requests have a content length, responses have a content length or end with the connection.
+ * Transfer encodings are not supported.
+ */
+final class HttpStreams {
+
+    private static final int MAX_LINE_LENGTH = 8192;
+    private static final int MAX_HEADERS = 100;
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private HttpStreams() {
+    }
+
+    /**
+     * Reads line terminated by CRLF or LF.
+     *
+     * @return line without the terminator, or {@code null} if the stream ends before the line starts
+     */
+    @Nullable
+    static String readLine(@NotNull InputStream in) throws IOException {
+        final StringBuilder line = new StringBuilder();
+        for (int b = in.read(); b != '\n'; b = in.read()) {
+            if (b < 0) {
+                if (line.isEmpty()) {
+                    return null;
+                }
+                throw new EOFException("Unexpected end of HTTP message");
+            }
+            if (line.length() >= MAX_LINE_LENGTH) {
+                throw new IOException("HTTP message line is too long");
+            }
+            line.append((char) b);
+        }
+        final int length = line.length();
+        if (length > 0 && line.charAt(length - 1) == '\r') {
+            line.setLength(length - 1);
+        }
+        return line.toString();
+    }
+
+    /**
+     * Reads header lines up to the empty line.
+     */
+    static void readHeaders(@NotNull InputStream in, @NotNull BiConsumer<String, String> consumer) throws IOException {
+        for (int count = 0; ; count++) {
+            final String line = readLine(in);
+            if (line == null) {
+                throw new EOFException("Unexpected end of HTTP headers");
+            }
+            if (line.isEmpty()) {
+                return;
+            }
+            if (count >= MAX_HEADERS) {
+                throw new IOException("Too many HTTP headers");
+            }
+            final int divPos = line.indexOf(':');
+            if (divPos <= 0) {
+                throw new IOException("Invalid HTTP header: " + line);
+            }
+            consumer.accept(line.substring(0, divPos).trim(), line.substring(divPos + 1).trim());
+        }
+    }
+
+    static void writeLine(@NotNull OutputStream out, @NotNull String line) throws IOException {
+        out.write(line.getBytes(StandardCharsets.ISO_8859_1));
+        out.write(CRLF);
+    }
+
+    /**
+     * Body of a message. Closing the stream skips the rest of the body, the underlying stream stays open.
+     */
+    static final class BodyInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining;
+        private boolean closed;
+
+        /**
+         * @param length body length, or -1 to read until the end of the stream
+         */
+        BodyInputStream(@NotNull InputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        /**
+         * Whether the body was read completely, so the connection may read the next message.
+         */
+        boolean isComplete() {
+            return remaining == 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(@NotNull byte[] b, int off, int len) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            final int count = in.read(b, off, remaining < 0 ? len : (int) Math.min(len, remaining));
+            if (count < 0) {
+                if (remaining > 0) {
+                    throw new EOFException("Unexpected end of HTTP message body");
+                }
+                // Body ends with the connection
+                remaining = 0;
+                return -1;
+            }
+            if (remaining > 0) {
+                remaining -= count;
+            }
+            return count;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return remaining == 0 ? 0 : (int) Math.min(in.available(), remaining < 0 ? Integer.MAX_VALUE : remaining);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            final byte[] buffer = new byte[1024];
+            while (!isComplete() && read(buffer, 0, buffer.length) >= 0) {
+                // Skip the rest of the body
+            }
+        }
+    }
+
+    /**
+     * Body of known length, or delimited by the end of the connection if the length is negative.
+     * Closing the stream does not close the underlying stream.
+     */
+    static final class BodyOutputStream extends FilterOutputStream {
+        private long remaining;
+
+        BodyOutputStream(@NotNull OutputStream out, long length) {
+            super(out);
+            this.remaining = length;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(@NotNull byte[] b, int off, int len) throws IOException {
+            if (remaining < 0) {
+                out.write(b, off, len);
+                return;
+            }
+            if (len > remaining) {
+                throw new IOException("Too many bytes written to HTTP message body");
+            }
+            out.write(b, off, len);
+            remaining -= len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.flush();
+            if (remaining > 0) {
+                throw new IOException("Insufficient bytes written to HTTP message body");
+            }
+        }
+    }
+}
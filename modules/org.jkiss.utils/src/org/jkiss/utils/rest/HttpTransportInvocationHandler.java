@@ -17,22 +17,26 @@
 package org.jkiss.utils.rest;
 
 import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
 import org.jkiss.code.NotNull;
+import org.jkiss.code.Nullable;
 import org.jkiss.utils.CommonUtils;
+import org.jkiss.utils.IOUtils;
+import org.jkiss.utils.io.FastByteArrayOutputStream;
 
 import java.io.IOException;
-import java.net.CookieManager;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.net.ConnectException;
 import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
 import java.nio.charset.StandardCharsets;
-import java.time.Duration;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -40,63 +44,353 @@ public abstract class HttpTransportInvocationHandler extends RpcInvocationHandle
 
     private static final Pattern ST_LINE_PATTERN = Pattern.compile("\\s*at\\s+([\\w/.$]+)\\((.+)\\)");
 
-    private final ExecutorService httpExecutor;
-    private final HttpClient client;
+    /**
+     * Default idle timeout of event subscriptions in seconds, four default heartbeat intervals of the server.
+     */
+    static final int DEFAULT_EVENT_IDLE_TIMEOUT = 60;
+
+    private final RpcTransport transport;
+    private int requestCompressionThreshold = -1;
+    private RpcRetryPolicy retryPolicy;
+    private final Map<URI, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+    private BalancedServer[] servers;
+    private RpcLoadBalancer loadBalancer;
+    private final Map<URI, URI[]> serverEndpoints = new ConcurrentHashMap<>();
+    private int eventIdleTimeout = DEFAULT_EVENT_IDLE_TIMEOUT;
 
     protected HttpTransportInvocationHandler(
         @NotNull Class<?> clientClass,
         @NotNull URI uri,
         @NotNull Gson gson,
         @NotNull String userAgent
+    ) {
+        this(clientClass, uri, gson, userAgent, new HttpClientTransport());
+    }
+
+    protected HttpTransportInvocationHandler(
+        @NotNull Class<?> clientClass,
+        @NotNull URI uri,
+        @NotNull Gson gson,
+        @NotNull String userAgent,
+        @NotNull RpcTransport transport
     ) {
         super(clientClass, uri, gson, userAgent);
-        this.httpExecutor = Executors.newSingleThreadExecutor();
-        this.client = HttpClient.newBuilder()
-            .executor(httpExecutor)
-            .cookieHandler(new CookieManager())
-            .build();
+        this.transport = transport;
+    }
+
+    /**
+     * Sets minimal size of request body which is sent gzip-compressed.
+     * Negative value (default) disables request compression, as not every server accepts compressed requests.
+     * Compressed responses are always accepted.
+     */
+    protected void setRequestCompressionThreshold(int requestCompressionThreshold) {
+        this.requestCompressionThreshold = requestCompressionThreshold;
+    }
+
+    /**
+     * Spreads requests over several identical servers. Endpoints resolved against the client URI are sent to
+     * the server chosen by the balancer, the client URI itself is used only if it is in the list.
+     */
+    protected void setServers(@NotNull List<URI> servers, @NotNull RpcLoadBalancer loadBalancer) {
+        if (servers.isEmpty()) {
+            throw new IllegalArgumentException("No servers specified");
+        }
+        final BalancedServer[] balancedServers = new BalancedServer[servers.size()];
+        for (int i = 0; i < balancedServers.length; i++) {
+            balancedServers[i] = new BalancedServer(servers.get(i), i);
+        }
+        this.servers = balancedServers;
+        this.loadBalancer = loadBalancer;
+    }
+
+    /**
+     * Sets policy of retrying and hedging calls. Calls are not repeated by default.
+     */
+    protected void setRetryPolicy(@Nullable RpcRetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * Sets time (in seconds) after which event subscriptions fail if neither events nor heartbeats are received.
+     * Zero disables the timeout.
+     */
+    protected void setEventIdleTimeout(int eventIdleTimeout) {
+        this.eventIdleTimeout = eventIdleTimeout;
+    }
+
+    /**
+     * Methods returning {@link Flow.Publisher} subscribe to server-sent events: each subscriber sends its own request.
+     * Subscriptions are not reported to call listeners and their results are never cached.
+     */
+    @Nullable
+    @Override
+    protected Object callRemoteMethod(
+        @NotNull RpcMethodDescriptor descriptor,
+        @NotNull Object[] args,
+        @NotNull Type returnType
+    ) throws RpcException {
+        if (!descriptor.isAsyncResult() && isEventResult(returnType)) {
+            final Type itemType = returnType instanceof ParameterizedType pt ? pt.getActualTypeArguments()[0] : Object.class;
+            final FastByteArrayOutputStream request = writeRequest(descriptor, args);
+            return new RpcEventPublisher<>(
+                descriptor.getEndpoint().getPath(),
+                () -> invokeRemoteMethod(descriptor, request),
+                gson.getAdapter(TypeToken.get(itemType)),
+                gson,
+                eventIdleTimeout);
+        }
+        return super.callRemoteMethod(descriptor, args, returnType);
+    }
+
+    @NotNull
+    @Override
+    protected InputStream invokeRemoteMethod(
+        @NotNull RpcMethodDescriptor descriptor,
+        @NotNull FastByteArrayOutputStream request
+    ) throws IOException, InterruptedException {
+        if (retryPolicy == null) {
+            return sendRequest(descriptor.getEndpoint(), request, descriptor.getTimeout());
+        }
+        final CompletableFuture<InputStream> result = new PolicyCall(descriptor, request, retryPolicy).start();
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            result.cancel(false);
+            throw e;
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException ioe) {
+                throw ioe;
+            }
+            if (cause instanceof RuntimeException re) {
+                throw re;
+            }
+            throw new RpcException(cause);
+        }
+    }
+
+    /**
+     * Sends request using {@link RpcTransport#sendAsync}, so the calling thread is not blocked.
+     * Errors are reported through the returned future.
+     */
+    @NotNull
+    @Override
+    protected CompletableFuture<InputStream> invokeRemoteMethodAsync(
+        @NotNull RpcMethodDescriptor descriptor,
+        @NotNull FastByteArrayOutputStream request
+    ) {
+        if (retryPolicy != null) {
+            return new PolicyCall(descriptor, request, retryPolicy).start();
+        }
+        return sendRequestAsync(descriptor.getEndpoint(), request, descriptor.getTimeout());
     }
 
-    protected String invokeRemoteMethodOverHttp(
-        @NotNull URI methodURI,
-        @NotNull String requestString,
-        RequestMapping methodMapping
+    /**
+     * Sends request body to the endpoint and returns stream of the successful response contents.
+     *
+     * @param timeout request timeout in seconds, zero means no timeout
+     */
+    @NotNull
+    protected InputStream sendRequest(
+        @NotNull URI endpoint,
+        @NotNull FastByteArrayOutputStream request,
+        int timeout
     ) throws IOException, InterruptedException {
-        HttpResponse.BodyHandler<String> readerBodyHandler =
-            info -> HttpResponse.BodySubscribers.ofString(StandardCharsets.UTF_8);
+        return readResponse(send(createRequest(endpoint, request, TimeUnit.SECONDS.toMillis(timeout), getCurrentCall())));
+    }
 
-        final HttpRequest.Builder builder = HttpRequest.newBuilder()
-            .uri(methodURI)
-            .header("Content-Type", "application/json")
-            .header("User-Agent", userAgent)
-            .POST(HttpRequest.BodyPublishers.ofString(requestString));
+    @NotNull
+    protected CompletableFuture<InputStream> sendRequestAsync(
+        @NotNull URI endpoint,
+        @NotNull FastByteArrayOutputStream request,
+        int timeout
+    ) {
+        return sendAsync(createRequest(endpoint, request, TimeUnit.SECONDS.toMillis(timeout), getCurrentCall()))
+            .thenApply(this::readResponse);
+    }
 
-        if (methodMapping != null && methodMapping.timeout() > 0) {
-            builder.timeout(Duration.ofSeconds(methodMapping.timeout()));
+    /**
+     * @param timeout timeout in milliseconds, zero means no timeout
+     * @param call    call observed by listeners, its headers are added to the request
+     */
+    @NotNull
+    private RpcTransport.Request createRequest(
+        @NotNull URI endpoint,
+        @NotNull FastByteArrayOutputStream request,
+        long timeout,
+        @Nullable RpcCall call
+    ) {
+        final Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("Content-Type", getCodec().getContentType());
+        headers.put("Accept", getCodec().getContentType());
+        headers.put("User-Agent", userAgent);
+        headers.put(HttpCompression.HEADER_ACCEPT_ENCODING, HttpCompression.SUPPORTED_ENCODINGS);
+        if (timeout > 0) {
+            // Lets the server cancel the call when the client stops waiting for it
+            headers.put(RpcConstants.HEADER_TIMEOUT, String.valueOf(timeout));
+        }
+        if (call != null) {
+            // Headers added by call listeners
+            headers.putAll(call.requestHeaders);
         }
 
-        final HttpResponse<String> response = client.send(
-            builder.build(),
-            readerBodyHandler
-        );
+        FastByteArrayOutputStream body = request;
+        if (requestCompressionThreshold >= 0 && request.size() >= requestCompressionThreshold) {
+            body = new FastByteArrayOutputStream(Math.max(32, request.size() / 4));
+            try (OutputStream out = HttpCompression.compress(body, HttpCompression.GZIP)) {
+                out.write(request.getInternalBuffer(), 0, request.size());
+            } catch (IOException e) {
+                throw new RpcException("Failed to compress request: " + e.getMessage(), e);
+            }
+            headers.put(HttpCompression.HEADER_CONTENT_ENCODING, HttpCompression.GZIP);
+        }
+        return new RpcTransport.Request(endpoint, headers, body.getInternalBuffer(), body.size(), timeout);
+    }
+
+    @NotNull
+    private RpcTransport.Response send(@NotNull RpcTransport.Request request) throws IOException, InterruptedException {
+        if (servers == null) {
+            return transport.send(request);
+        }
+        final BalancedServer server = selectServer();
+        final long startTime = server.requestStarted();
+        Throwable error = null;
+        try {
+            return transport.send(getServerRequest(request, server));
+        } catch (IOException | RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            server.requestCompleted(startTime, error);
+        }
+    }
+
+    @NotNull
+    private CompletableFuture<RpcTransport.Response> sendAsync(@NotNull RpcTransport.Request request) {
+        if (servers == null) {
+            return transport.sendAsync(request);
+        }
+        final BalancedServer server = selectServer();
+        final long startTime = server.requestStarted();
+        final CompletableFuture<RpcTransport.Response> result = transport.sendAsync(getServerRequest(request, server));
+        result.whenComplete((response, error) -> server.requestCompleted(startTime, error));
+        return result;
+    }
 
-        String contents = response.body();
-        if (response.statusCode() != RpcConstants.SC_OK) {
+    /**
+     * Chooses server among those not ejected. If all servers are ejected, all of them are offered to the balancer.
+     */
+    @NotNull
+    private BalancedServer selectServer() {
+        final BalancedServer[] servers = this.servers;
+        if (servers.length == 1) {
+            return servers[0];
+        }
+        final long now = System.nanoTime();
+        final List<BalancedServer> available = new ArrayList<>(servers.length);
+        for (BalancedServer server : servers) {
+            if (server.isAvailable(now)) {
+                available.add(server);
+            }
+        }
+        return (BalancedServer) loadBalancer.select(available.isEmpty() ? Arrays.asList(servers) : available);
+    }
+
+    @NotNull
+    private RpcTransport.Request getServerRequest(@NotNull RpcTransport.Request request, @NotNull BalancedServer server) {
+        URI[] endpoints = serverEndpoints.get(request.endpoint());
+        if (endpoints == null) {
+            endpoints = serverEndpoints.computeIfAbsent(request.endpoint(), this::resolveServerEndpoints);
+        }
+        final URI endpoint = endpoints[server.index];
+        if (endpoint.equals(request.endpoint())) {
+            return request;
+        }
+        return new RpcTransport.Request(endpoint, request.headers(), request.body(), request.bodyLength(), request.timeout());
+    }
+
+    /**
+     * Rebases endpoint resolved against the client URI to each of the servers.
+     */
+    @NotNull
+    private URI[] resolveServerEndpoints(@NotNull URI endpoint) {
+        final String clientUri = CommonUtils.removeTrailingSlash(uri.toString());
+        final String path = endpoint.toString();
+        final URI[] endpoints = new URI[servers.length];
+        for (int i = 0; i < servers.length; i++) {
+            endpoints[i] = path.startsWith(clientUri)
+                ? URI.create(CommonUtils.removeTrailingSlash(servers[i].uri.toString()) + path.substring(clientUri.length()))
+                : endpoint;
+        }
+        return endpoints;
+    }
+
+    /**
+     * Returns latency of successful requests to the endpoint, used to decide when calls are hedged.
+     */
+    @NotNull
+    private LatencyHistogram getLatency(@NotNull URI endpoint) {
+        LatencyHistogram latency = latencies.get(endpoint);
+        if (latency == null) {
+            latency = latencies.computeIfAbsent(endpoint, e -> new LatencyHistogram());
+        }
+        return latency;
+    }
+
+    /**
+     * Returns stream of the response contents, decompressed if needed.
+     * The response is parsed while it is being received.
+     */
+    @NotNull
+    private InputStream readResponse(@NotNull RpcTransport.Response response) throws RpcException {
+        final InputStream responseBody;
+        try {
+            responseBody = HttpCompression.decompress(
+                response.getBody(),
+                response.getHeader(HttpCompression.HEADER_CONTENT_ENCODING));
+        } catch (IOException e) {
+            IOUtils.close(response.getBody());
+            throw new RpcException("Failed to read response: " + e.getMessage(), e);
+        }
+        if (response.getStatusCode() != RpcConstants.SC_OK) {
+            String contents;
+            try (InputStream body = responseBody) {
+                contents = new String(body.readAllBytes(), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw new RpcException("Failed to read error response: " + e.getMessage(), e);
+            }
+            final int statusCode = response.getStatusCode();
+            if (getCodec() != JsonCodec.INSTANCE
+                && (statusCode == RpcConstants.SC_BAD_REQUEST || statusCode == RpcConstants.SC_UNSUPPORTED_MEDIA_TYPE)) {
+                // Servers without the codec read requests as JSON
+                try {
+                    handleHttpError(contents);
+                } catch (RpcException e) {
+                    throw new RpcException("Server failed to read " + getCodec().getContentType()
+                        + " request, the codec may not be supported by the server: " + e.getMessage(), e);
+                }
+            }
             handleHttpError(contents);
         }
+        final String contentType = response.getHeader("Content-Type");
+        if (getCodec() != JsonCodec.INSTANCE && contentType != null
+            && contentType.toLowerCase(Locale.ENGLISH).startsWith(JsonCodec.CONTENT_TYPE)) {
+            // Server without the codec
+            IOUtils.close(responseBody);
+            throw new RpcException("Server responded with " + contentType + " instead of " + getCodec().getContentType()
+                + ", the codec is not supported by the server");
+        }
 
-        return contents;
+        return responseBody;
     }
 
     @Override
     protected boolean isClientClosed() {
-        return httpExecutor == null || httpExecutor.isShutdown() || httpExecutor.isTerminated();
+        return transport.isClosed();
     }
 
     protected void closeClient() {
-        if (!httpExecutor.isShutdown()) {
-            httpExecutor.shutdown();
-        }
+        transport.close();
     }
 
     protected void handleHttpError(String contents) throws RpcException {
@@ -108,6 +402,15 @@ public abstract class HttpTransportInvocationHandler extends RpcInvocationHandle
 //            }
             throw new RpcException(contents);
         }
+        throw createRemoteError(contents);
+    }
+
+    /**
+     * Creates exception of a remote error from its stack trace, e.g. the contents of an error response.
+     * The remote stack trace is followed by the local one.
+     */
+    @NotNull
+    static RpcException createRemoteError(@NotNull String contents) {
         String[] stackTraceRows = contents.split("\n");
         StringBuilder errorLineBuilder = new StringBuilder(stackTraceRows[0]);
         List<StackTraceElement> stackTraceElements = new ArrayList<>();
@@ -142,7 +445,252 @@ public abstract class HttpTransportInvocationHandler extends RpcInvocationHandle
         Collections.addAll(stackTraceElements, runtimeException.getStackTrace());
         runtimeException.setStackTrace(stackTraceElements.toArray(new StackTraceElement[0]));
 
-        throw runtimeException;
+        return runtimeException;
+    }
+
+
+    /**
+     * Call sent according to the {@link RpcRetryPolicy}. The first successful response completes the call,
+     * requests still in flight are cancelled.
+     */
+    private final class PolicyCall {
+        private final RpcMethodDescriptor descriptor;
+        private final FastByteArrayOutputStream request;
+        private final RpcRetryPolicy policy;
+        @Nullable
+        private final RpcCall call;
+        private final long deadline;
+        private final CompletableFuture<InputStream> result = new CompletableFuture<>();
+        // Guarded by this
+        private final List<CompletableFuture<RpcTransport.Response>> attempts = new ArrayList<>(2);
+        private int attemptCount;
+
+        PolicyCall(@NotNull RpcMethodDescriptor descriptor, @NotNull FastByteArrayOutputStream request, @NotNull RpcRetryPolicy policy) {
+            this.descriptor = descriptor;
+            this.request = request;
+            this.policy = policy;
+            this.call = getCurrentCall();
+            this.deadline = descriptor.getTimeout() > 0 ? System.nanoTime() + TimeUnit.SECONDS.toNanos(descriptor.getTimeout()) : 0;
+        }
+
+        @NotNull
+        CompletableFuture<InputStream> start() {
+            result.whenComplete((response, error) -> cancelAttempts());
+            sendAttempt(false);
+            if (descriptor.isIdempotent()) {
+                final long hedgeDelay = policy.getHedgeDelay(getLatency(descriptor.getEndpoint()));
+                if (hedgeDelay > 0 && (deadline == 0 || deadline - System.nanoTime() > hedgeDelay)) {
+                    CompletableFuture.delayedExecutor(hedgeDelay, TimeUnit.NANOSECONDS).execute(() -> sendAttempt(true));
+                }
+            }
+            return result;
+        }
+
+        private void sendAttempt(boolean hedge) {
+            long timeout = 0;
+            if (deadline != 0) {
+                // Each request gets what remains of the call timeout
+                timeout = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (timeout <= 0) {
+                    if (!hedge) {
+                        result.completeExceptionally(new HttpTimeoutException("Request timed out"));
+                    }
+                    return;
+                }
+            }
+            final CompletableFuture<RpcTransport.Response> attempt;
+            synchronized (this) {
+                if (result.isDone() || (hedge && attempts.isEmpty()) || attemptCount >= policy.getMaxAttempts()) {
+                    // Completed, or waiting for a retry which is not hedged
+                    return;
+                }
+                attemptCount++;
+                if (call != null) {
+                    call.setAttempts(attemptCount);
+                }
+                try {
+                    attempt = sendAsync(createRequest(descriptor.getEndpoint(), request, timeout, call));
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                    return;
+                }
+                attempts.add(attempt);
+            }
+            final long startTime = System.nanoTime();
+            attempt.whenComplete((response, error) -> attemptCompleted(attempt, startTime, response, error));
+        }
+
+        private void attemptCompleted(
+            @NotNull CompletableFuture<RpcTransport.Response> attempt,
+            long startTime,
+            @Nullable RpcTransport.Response response,
+            @Nullable Throwable error
+        ) {
+            final boolean lastAttempt;
+            final int attemptNumber;
+            synchronized (this) {
+                attempts.remove(attempt);
+                lastAttempt = attempts.isEmpty();
+                attemptNumber = attemptCount;
+            }
+            if (response != null) {
+                if (result.isDone()) {
+                    IOUtils.close(response.getBody());
+                    return;
+                }
+                if (response.getStatusCode() == RpcConstants.SC_UNAVAILABLE && (!lastAttempt || attemptNumber < policy.getMaxAttempts())) {
+                    // The server rejected the request without processing it, so any call may be repeated
+                    IOUtils.close(response.getBody());
+                    if (lastAttempt) {
+                        final long retryAfter = TimeUnit.SECONDS.toNanos(
+                            CommonUtils.toLong(response.getHeader(RpcConstants.HEADER_RETRY_AFTER), 0));
+                        retry(Math.max(retryAfter, policy.getBackoff(attemptNumber)), new RpcException("Server is overloaded"));
+                    }
+                    return;
+                }
+                getLatency(descriptor.getEndpoint()).record(System.nanoTime() - startTime);
+                final InputStream body;
+                try {
+                    body = readResponse(response);
+                } catch (Throwable e) {
+                    // Error reported by the server, repeating the call would not help
+                    result.completeExceptionally(e);
+                    return;
+                }
+                if (!result.complete(body)) {
+                    IOUtils.close(body);
+                }
+                return;
+            }
+            if (result.isDone() || !lastAttempt) {
+                // Another request is still in flight
+                return;
+            }
+            final Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            if (attemptNumber >= policy.getMaxAttempts() || !isRetryable(cause)) {
+                result.completeExceptionally(cause);
+                return;
+            }
+            retry(policy.getBackoff(attemptNumber), cause);
+        }
+
+        /**
+         * Sends the next request after a delay, or fails the call with the given error if there is no time left.
+         */
+        private void retry(long delay, @NotNull Throwable error) {
+            if (deadline != 0 && System.nanoTime() + delay >= deadline) {
+                result.completeExceptionally(error);
+                return;
+            }
+            CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS).execute(() -> sendAttempt(false));
+        }
+
+        /**
+         * Connection failures are safe to retry as the request did not reach the server.
+         * Other transport failures are retried for idempotent methods only, timeouts mean the time is over.
+         */
+        private boolean isRetryable(@Nullable Throwable error) {
+            if (error instanceof ConnectException) {
+                return true;
+            }
+            return descriptor.isIdempotent() && error instanceof IOException && !(error instanceof HttpTimeoutException);
+        }
+
+        private void cancelAttempts() {
+            final List<CompletableFuture<RpcTransport.Response>> inFlight;
+            synchronized (this) {
+                inFlight = new ArrayList<>(attempts);
+            }
+            for (CompletableFuture<RpcTransport.Response> attempt : inFlight) {
+                attempt.cancel(false);
+            }
+        }
     }
 
+    /**
+     * Load balanced server. Server is ejected after several consecutive failures, each subsequent ejection lasts longer.
+     * Once the ejection is over, the server gets requests again: a single success brings it back to normal,
+     * a single failure ejects it again.
+     */
+    private static final class BalancedServer implements RpcLoadBalancer.Server {
+        private static final int MAX_FAILURES = 3;
+        private static final long EJECTION_TIME = TimeUnit.SECONDS.toNanos(1);
+        private static final long MAX_EJECTION_TIME = TimeUnit.SECONDS.toNanos(30);
+        private static final int LATENCY_DECAY = 8;
+
+        private final URI uri;
+        private final int index;
+        private final AtomicInteger outstandingRequests = new AtomicInteger();
+        private final AtomicLong latency = new AtomicLong();
+        // Modified under lock
+        private volatile int failures;
+        private int ejections;
+        private volatile long ejectedUntil;
+
+        BalancedServer(@NotNull URI uri, int index) {
+            this.uri = uri;
+            this.index = index;
+        }
+
+        @NotNull
+        @Override
+        public URI getUri() {
+            return uri;
+        }
+
+        @Override
+        public int getOutstandingRequests() {
+            return outstandingRequests.get();
+        }
+
+        @Override
+        public long getLatency() {
+            return latency.get();
+        }
+
+        boolean isAvailable(long now) {
+            final long until = ejectedUntil;
+            return until == 0 || now - until >= 0;
+        }
+
+        long requestStarted() {
+            outstandingRequests.incrementAndGet();
+            return System.nanoTime();
+        }
+
+        void requestCompleted(long startTime, @Nullable Throwable error) {
+            outstandingRequests.decrementAndGet();
+            if (error instanceof CompletionException && error.getCause() != null) {
+                error = error.getCause();
+            }
+            if (error == null) {
+                final long duration = System.nanoTime() - startTime;
+                latency.accumulateAndGet(duration, (average, sample) -> average == 0 ? sample : average + (sample - average) / LATENCY_DECAY);
+                if (failures != 0 || ejectedUntil != 0) {
+                    synchronized (this) {
+                        failures = 0;
+                        ejections = 0;
+                        ejectedUntil = 0;
+                    }
+                }
+            } else if (!(error instanceof CancellationException)) {
+                synchronized (this) {
+                    if (++failures >= MAX_FAILURES) {
+                        final long ejectionTime = Math.min(EJECTION_TIME << Math.min(ejections, 10), MAX_EJECTION_TIME);
+                        ejections++;
+                        // A single failure of the returning server ejects it again
+                        failures = MAX_FAILURES - 1;
+                        ejectedUntil = System.nanoTime() + ejectionTime;
+                        // Forget latency so the server is probed once it is back
+                        latency.set(0);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return uri.toString();
+        }
+    }
 }
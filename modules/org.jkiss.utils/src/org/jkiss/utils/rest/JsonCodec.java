@@ -0,0 +1,57 @@
+/*
+ * DBeaver - Universal Database Manager
+ * Copyright (C) 2010-2024 DBeaver Corp and others
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jkiss.utils.rest;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import org.jkiss.code.NotNull;
+import org.jkiss.utils.IOUtils;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Default text JSON codec.
+ */
+public final class JsonCodec implements RpcCodec {
+
+    public static final String CONTENT_TYPE = "application/json";
+
+    public static final JsonCodec INSTANCE = new JsonCodec();
+
+    private JsonCodec() {
+    }
+
+    @NotNull
+    @Override
+    public String getContentType() {
+        return CONTENT_TYPE;
+    }
+
+    @NotNull
+    @Override
+    public JsonWriter createWriter(@NotNull Gson gson, @NotNull OutputStream out) throws IOException {
+        return gson.newJsonWriter(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), IOUtils.DEFAULT_BUFFER_SIZE));
+    }
+
+    @NotNull
+    @Override
+    public JsonReader createReader(@NotNull Gson gson, @NotNull InputStream in) throws IOException {
+        return gson.newJsonReader(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)));
+    }
+}
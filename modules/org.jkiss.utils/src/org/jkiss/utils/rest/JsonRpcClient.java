@@ -18,16 +18,35 @@ package org.jkiss.utils.rest;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 import org.jkiss.code.NotNull;
 import org.jkiss.code.Nullable;
+import org.jkiss.utils.io.FastByteArrayOutputStream;
 
-import java.lang.reflect.Method;
+import java.io.*;
+import java.lang.reflect.Array;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.Type;
 import java.net.URI;
-import java.util.LinkedHashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
+/**
+ * Client of JSON RPC servers. A call is sent as {@code {"<method>":[<arguments>]}} object,
+ * the response body is the call result.
+ * <p>
+ * Batched calls are sent as an array of such objects. Servers accepting batches must respond with an array
+ * of {@code {"result":<value>}} or {@code {"error":{"message":...}}} objects in the order of the calls,
+ * or with a single error object if the whole batch is rejected. A batch of one call is sent as a regular call.
+ */
 public class JsonRpcClient extends RpcClient {
 
     private static final String DEFAULT_USER_AGENT = "JsonRpc Client";
@@ -37,11 +56,30 @@ public class JsonRpcClient extends RpcClient {
         return new Builder<>(uri, cls);
     }
 
+    /**
+     * Creates a batch of calls for a proxy created by this client.
+     * Batched calls are sent in a single request, the server must accept batches, see {@link JsonRpcClient}.
+     */
+    @NotNull
+    public static <T> Batch<T> batch(@NotNull T client) {
+        if (!Proxy.isProxyClass(client.getClass())
+            || !(Proxy.getInvocationHandler(client) instanceof JsonRpcInvocationHandler handler)) {
+            throw new IllegalArgumentException("Not a JSON-RPC client: " + client);
+        }
+        return new Batch<>(client, handler);
+    }
+
     public static final class Builder<T> {
         private final URI uri;
         private final Class<T> cls;
         private Gson gson;
         private String userAgent;
+        private int requestCompressionThreshold = -1;
+        private final List<RpcCallListener> callListeners = new ArrayList<>();
+        private RpcRetryPolicy retryPolicy;
+        private int maxBatchSize;
+        private long batchDelay;
+        private HttpClientPool httpClientPool = HttpClientPool.getDefault();
 
         private Builder(@NotNull URI uri, @NotNull Class<T> cls) {
             this.uri = uri;
@@ -61,23 +99,190 @@ public class JsonRpcClient extends RpcClient {
             return this;
         }
 
+        /**
+         * Enables automatic coalescing of calls into batch requests, the server must accept batches,
+         * see {@link JsonRpcClient}.
+         * Calls are collected until {@code maxBatchSize} calls are pending or {@code maxDelay} milliseconds
+         * have passed since the first pending call, then sent in one request.
+         */
+        @NotNull
+        public Builder<T> setAutoBatching(int maxBatchSize, long maxDelay) {
+            this.maxBatchSize = maxBatchSize;
+            this.batchDelay = maxDelay;
+            return this;
+        }
+
+        /**
+         * Sends request bodies of at least this size gzip-compressed. The server must accept compressed requests.
+         * Negative value (default) disables request compression.
+         */
+        @NotNull
+        public Builder<T> setRequestCompressionThreshold(int requestCompressionThreshold) {
+            this.requestCompressionThreshold = requestCompressionThreshold;
+            return this;
+        }
+
+        /**
+         * Sets policy of retrying and hedging calls, see {@link Idempotent}. Calls are not repeated by default.
+         * Calls sent in batches are not repeated.
+         */
+        @NotNull
+        public Builder<T> setRetryPolicy(@Nullable RpcRetryPolicy retryPolicy) {
+            this.retryPolicy = retryPolicy;
+            return this;
+        }
+
+        /**
+         * Sets pool of HTTP clients shared with other clients, see {@link HttpClientPool#getDefault()}.
+         */
+        @NotNull
+        public Builder<T> setHttpClientPool(@NotNull HttpClientPool httpClientPool) {
+            this.httpClientPool = httpClientPool;
+            return this;
+        }
+
+        /**
+         * Adds listener of calls, e.g. {@link RpcCallStatistics}.
+         */
+        @NotNull
+        public Builder<T> addCallListener(@NotNull RpcCallListener listener) {
+            this.callListeners.add(listener);
+            return this;
+        }
+
         @NotNull
         public T create() {
-            return createProxy(
-                cls,
-                new JsonRpcInvocationHandler(cls, uri, gson, userAgent));
+            final JsonRpcInvocationHandler handler = new JsonRpcInvocationHandler(
+                cls, uri, gson, userAgent, new HttpClientTransport(httpClientPool), maxBatchSize, batchDelay);
+            handler.setRequestCompressionThreshold(requestCompressionThreshold);
+            handler.setRetryPolicy(retryPolicy);
+            for (RpcCallListener listener : callListeners) {
+                handler.addCallListener(listener);
+            }
+            return createProxy(cls, handler);
+        }
+    }
+
+    /**
+     * Batch of calls sent in a single request. Not thread-safe.
+     * <pre>{@code
+     * JsonRpcClient.Batch<Api> batch = JsonRpcClient.batch(api);
+     * CompletableFuture<String> name = batch.add(a -> a.getName(id));
+     * CompletableFuture<Integer> count = batch.add(a -> a.getCount());
+     * batch.execute();
+     * }</pre>
+     */
+    public static final class Batch<T> {
+        private final T proxy;
+        private final JsonRpcInvocationHandler handler;
+        private final List<PendingCall> calls = new ArrayList<>();
+
+        private Batch(@NotNull T proxy, @NotNull JsonRpcInvocationHandler handler) {
+            this.proxy = proxy;
+            this.handler = handler;
+        }
+
+        /**
+         * Adds a call to the batch. The function must invoke exactly one method of the given client,
+         * the call is recorded and its result is delivered through the returned future once the batch is executed.
+         * Use {@link #addAsync(Function)} for methods returning a future.
+         */
+        @NotNull
+        @SuppressWarnings("unchecked")
+        public <R> CompletableFuture<R> add(@NotNull Function<T, R> call) {
+            final PendingCall pendingCall = record(call);
+            if (pendingCall.descriptor.isAsyncResult()) {
+                throw new IllegalArgumentException("Method " + pendingCall.descriptor.getMethod().getName()
+                    + " returns a future and must be added with addAsync");
+            }
+            calls.add(pendingCall);
+            return (CompletableFuture<R>) pendingCall.future;
+        }
+
+        /**
+         * Adds a call of a method returning a future to the batch, see {@link #add(Function)}.
+         * The returned future completes with the call result once the batch is executed.
+         */
+        @NotNull
+        @SuppressWarnings("unchecked")
+        public <R> CompletableFuture<R> addAsync(@NotNull Function<T, ? extends Future<R>> call) {
+            final PendingCall pendingCall = record(call);
+            if (!pendingCall.descriptor.isAsyncResult()) {
+                throw new IllegalArgumentException("Method " + pendingCall.descriptor.getMethod().getName()
+                    + " does not return a future and must be added with add");
+            }
+            calls.add(pendingCall);
+            return (CompletableFuture<R>) pendingCall.future;
+        }
+
+        @NotNull
+        private PendingCall record(@NotNull Function<T, ?> call) {
+            final List<PendingCall> recorded = new ArrayList<>(1);
+            handler.recordedCalls.set(recorded);
+            try {
+                call.apply(proxy);
+            } finally {
+                handler.recordedCalls.remove();
+            }
+            if (recorded.size() != 1) {
+                throw new IllegalArgumentException("Batched call must invoke exactly one client method");
+            }
+            return recorded.get(0);
+        }
+
+        public int size() {
+            return calls.size();
+        }
+
+        /**
+         * Sends the batch and waits for all responses.
+         * Failures of individual calls are reported through their futures.
+         */
+        public void execute() throws RpcException {
+            RpcInvocationHandler.waitForResult(executeAsync());
+        }
+
+        @NotNull
+        public CompletableFuture<Void> executeAsync() {
+            final List<PendingCall> batchCalls = new ArrayList<>(calls);
+            calls.clear();
+            return handler.sendBatch(batchCalls);
+        }
+    }
+
+    private static final class PendingCall {
+        private final RpcMethodDescriptor descriptor;
+        private final Object[] args;
+        private final Type returnType;
+        private final CompletableFuture<Object> future = new CompletableFuture<>();
+
+        PendingCall(@NotNull RpcMethodDescriptor descriptor, @NotNull Object[] args, @NotNull Type returnType) {
+            this.descriptor = descriptor;
+            this.args = args;
+            this.returnType = returnType;
         }
     }
 
     private static class JsonRpcInvocationHandler extends HttpTransportInvocationHandler {
 
+        private final ThreadLocal<List<PendingCall>> recordedCalls = new ThreadLocal<>();
+        private final int maxBatchSize;
+        private final long batchDelay;
+        private final Object pendingLock = new Object();
+        private List<PendingCall> pendingCalls = new ArrayList<>();
+
         private JsonRpcInvocationHandler(
             @NotNull Class<?> clientClass,
             @NotNull URI uri,
             @NotNull Gson gson,
-            @NotNull String userAgent
+            @NotNull String userAgent,
+            @NotNull RpcTransport transport,
+            int maxBatchSize,
+            long batchDelay
         ) {
-            super(clientClass, uri, gson, userAgent);
+            super(clientClass, uri, gson, userAgent, transport);
+            this.maxBatchSize = maxBatchSize;
+            this.batchDelay = batchDelay;
         }
 
         @Override
@@ -99,24 +304,219 @@ public class JsonRpcClient extends RpcClient {
             super.handleHttpError(contents);
         }
 
+        @Nullable
         @Override
-        protected String invokeRemoteMethod(
-            @NotNull Method method,
-            @Nullable RequestMapping mapping,
-            @NotNull Map<String, JsonElement> values
-        ) {
-            try {
-                Map<String, Object> fullRequest = new LinkedHashMap<>();
-                List<JsonElement> paramList = values.values().stream().toList();
-                fullRequest.put(method.getName(), paramList);
-                String requestString = gson.toJson(fullRequest);
+        protected Object callRemoteMethod(
+            @NotNull RpcMethodDescriptor descriptor,
+            @NotNull Object[] args,
+            @NotNull Type returnType
+        ) throws RpcException {
+            final List<PendingCall> recorded = recordedCalls.get();
+            if (recorded != null) {
+                // Explicit batch: record the call, it is sent when the batch is executed
+                if (isStreamResult(returnType) || isEventResult(returnType)) {
+                    throw new RpcException("Method " + descriptor.getMethod().getName() + " returns a stream and can't be batched");
+                }
+                final PendingCall call = new PendingCall(descriptor, args, returnType);
+                recorded.add(call);
+                return descriptor.isAsyncResult() ? call.future : getDefaultValue(descriptor.getMethod().getReturnType());
+            }
+            if (maxBatchSize > 1 && !isStreamResult(returnType) && !isEventResult(returnType)) {
+                final PendingCall call = new PendingCall(descriptor, args, returnType);
+                enqueue(call);
+                return descriptor.isAsyncResult() ? call.future : waitForResult(call.future);
+            }
+            return super.callRemoteMethod(descriptor, args, returnType);
+        }
+
+        private void enqueue(@NotNull PendingCall call) {
+            List<PendingCall> readyCalls = null;
+            boolean scheduleFlush = false;
+            synchronized (pendingLock) {
+                pendingCalls.add(call);
+                if (pendingCalls.size() >= maxBatchSize) {
+                    readyCalls = pendingCalls;
+                    pendingCalls = new ArrayList<>();
+                } else if (pendingCalls.size() == 1) {
+                    scheduleFlush = true;
+                }
+            }
+            if (readyCalls != null) {
+                sendBatch(readyCalls);
+            } else if (scheduleFlush) {
+                CompletableFuture.runAsync(this::flushPendingCalls, CompletableFuture.delayedExecutor(batchDelay, TimeUnit.MILLISECONDS));
+            }
+        }
+
+        private void flushPendingCalls() {
+            final List<PendingCall> readyCalls;
+            synchronized (pendingLock) {
+                if (pendingCalls.isEmpty()) {
+                    return;
+                }
+                readyCalls = pendingCalls;
+                pendingCalls = new ArrayList<>();
+            }
+            sendBatch(readyCalls);
+        }
+
+        /**
+         * Sends calls in one request. A single call is sent as a regular request.
+         * The returned future completes when all calls are completed.
+         */
+        @NotNull
+        private CompletableFuture<Void> sendBatch(@NotNull List<PendingCall> calls) {
+            if (calls.isEmpty()) {
+                return CompletableFuture.completedFuture(null);
+            }
+            if (calls.size() == 1) {
+                final PendingCall call = calls.get(0);
+                final CompletableFuture<Void> result;
+                try {
+                    result = invokeRemoteMethodAsync(call.descriptor, writeRequest(call.descriptor, call.args))
+                        .thenAccept(response -> call.future.complete(readResult(response, call.returnType)));
+                } catch (Throwable e) {
+                    call.future.completeExceptionally(e);
+                    return CompletableFuture.completedFuture(null);
+                }
+                return result.exceptionally(e -> {
+                    call.future.completeExceptionally(unwrapError(e));
+                    return null;
+                });
+            }
 
-                return super.invokeRemoteMethodOverHttp(uri, requestString, mapping);
-            } catch (RuntimeException e) {
-                throw e;
-            } catch (Exception e) {
-                throw new RpcException(e);
+            final FastByteArrayOutputStream request = new FastByteArrayOutputStream();
+            int timeout = 0;
+            try (JsonWriter writer = getCodec().createWriter(getCodecGson(), request)) {
+                writer.beginArray();
+                for (PendingCall call : calls) {
+                    writeRequest(writer, call.descriptor, call.args);
+                    timeout = getBatchTimeout(timeout, call.descriptor.getTimeout(), call == calls.get(0));
+                }
+                writer.endArray();
+            } catch (Throwable e) {
+                failCalls(calls, e);
+                return CompletableFuture.completedFuture(null);
+            }
+
+            return sendRequestAsync(uri, request, timeout)
+                .thenAccept(response -> readBatchResponse(response, calls))
+                .exceptionally(e -> {
+                    failCalls(calls, unwrapError(e));
+                    return null;
+                });
+        }
+
+        /**
+         * Batch uses the longest timeout of its calls, or no timeout if any of them has none.
+         */
+        private static int getBatchTimeout(int batchTimeout, int callTimeout, boolean first) {
+            if (first) {
+                return callTimeout;
+            }
+            return batchTimeout <= 0 || callTimeout <= 0 ? 0 : Math.max(batchTimeout, callTimeout);
+        }
+
+        /**
+         * Reads batch response and completes calls in the order they were sent.
+         */
+        private void readBatchResponse(@NotNull InputStream response, @NotNull List<PendingCall> calls) {
+            final Gson codecGson = getCodecGson();
+            int index = 0;
+            try (JsonReader reader = getCodec().createReader(codecGson, response)) {
+                if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+                    // The whole batch was rejected
+                    final JsonObject error = codecGson.fromJson(reader, JsonObject.class);
+                    failCalls(calls, createError(error.get("error")));
+                    return;
+                }
+                reader.beginArray();
+                for (; index < calls.size() && reader.hasNext(); index++) {
+                    readBatchEntry(reader, calls.get(index));
+                }
+                while (reader.hasNext()) {
+                    reader.skipValue();
+                }
+                reader.endArray();
+            } catch (Throwable e) {
+                failCalls(calls.subList(index, calls.size()), new RpcException("Failed to read batch response: " + e.getMessage(), e));
+                return;
+            }
+            failCalls(calls.subList(index, calls.size()), new RpcException("No response for the batched call"));
+        }
+
+        private void readBatchEntry(@NotNull JsonReader reader, @NotNull PendingCall call) throws IOException {
+            final Gson codecGson = getCodecGson();
+            Object result = null;
+            RpcException error = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "result" -> {
+                        if (call.returnType == void.class || call.returnType == Void.class) {
+                            reader.skipValue();
+                        } else {
+                            try {
+                                result = codecGson.fromJson(reader, call.returnType);
+                            } catch (JsonParseException e) {
+                                error = new RpcException("Failed to read response: " + e.getMessage(), e);
+                            }
+                        }
+                    }
+                    case "error" -> error = createError(codecGson.fromJson(reader, JsonElement.class));
+                    default -> reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (error != null) {
+                call.future.completeExceptionally(error);
+            } else {
+                call.future.complete(result);
+            }
+        }
+
+        @NotNull
+        private RpcException createError(@Nullable JsonElement error) {
+            final RpcErrorInfo errorInfo = error == null || !error.isJsonObject() ? null : gson.fromJson(error, RpcErrorInfo.class);
+            if (errorInfo == null || errorInfo.getMessage() == null) {
+                return new RpcException("Remote call failed" + (error == null ? "" : ": " + error));
+            }
+            return new RpcException(errorInfo.getMessage());
+        }
+
+        private static void failCalls(@NotNull Collection<PendingCall> calls, @NotNull Throwable error) {
+            for (PendingCall call : calls) {
+                call.future.completeExceptionally(error);
+            }
+        }
+
+        @NotNull
+        private static Throwable unwrapError(@NotNull Throwable e) {
+            return e instanceof java.util.concurrent.CompletionException && e.getCause() != null ? e.getCause() : e;
+        }
+
+        @Nullable
+        private static Object getDefaultValue(@NotNull Class<?> type) {
+            if (type.isPrimitive() && type != void.class) {
+                return Array.get(Array.newInstance(type, 1), 0);
+            }
+            return null;
+        }
+
+        @Override
+        protected void writeRequest(
+            @NotNull JsonWriter writer,
+            @NotNull RpcMethodDescriptor descriptor,
+            @NotNull Object[] args
+        ) throws IOException {
+            writer.beginObject();
+            writer.name(descriptor.getMethod().getName());
+            writer.beginArray();
+            for (int i = 0; i < args.length; i++) {
+                writeArgument(writer, args, i);
             }
+            writer.endArray();
+            writer.endObject();
         }
 
     }
@@ -0,0 +1,144 @@
+/*
+ * DBeaver - Universal Database Manager
+ * Copyright (C) 2010-2024 DBeaver Corp and others
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jkiss.utils.rest;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import org.jkiss.code.NotNull;
+import org.jkiss.code.Nullable;
+
+import java.lang.invoke.MethodType;
+import java.lang.reflect.RecordComponent;
+import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of servers accepting in-process calls, see {@link RestServer.Builder#setLocalCallMode}.
+ * Servers are registered by their port or unix socket path, clients connecting to the same port
+ * or socket call them directly.
+ */
+final class LocalCalls {
+
+    /**
+     * Returned by local invocation when the call must be sent over the transport.
+     */
+    static final Object NOT_HANDLED = new Object();
+
+    private static final Map<String, RestServer<?>> servers = new ConcurrentHashMap<>();
+
+    private static final Set<Class<?>> IMMUTABLE_TYPES = Set.of(
+        String.class, Boolean.class, Character.class, Byte.class, Short.class, Integer.class, Long.class,
+        Float.class, Double.class, BigInteger.class, BigDecimal.class, UUID.class, URI.class
+    );
+
+    private static final ClassValue<Boolean> IMMUTABLE = new ClassValue<>() {
+        @Override
+        protected Boolean computeValue(@NotNull Class<?> type) {
+            if (type.isPrimitive() || type.isEnum() || IMMUTABLE_TYPES.contains(type)
+                || (type.getPackageName().equals("java.time") && !type.isInterface())) {
+                return true;
+            }
+            if (type.isRecord()) {
+                // Record of immutable values
+                for (RecordComponent component : type.getRecordComponents()) {
+                    if (component.getType() == type || !get(component.getType())) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private LocalCalls() {
+    }
+
+    @NotNull
+    static String getServerKey(@Nullable Path unixSocketPath, int port) {
+        return unixSocketPath != null ? getSocketKey(unixSocketPath) : "tcp:" + port;
+    }
+
+    /**
+     * Returns key of the server the client connects to, or {@code null} if it can't be a server of this process.
+     */
+    @Nullable
+    static String getClientKey(@NotNull URI uri, @Nullable Path unixSocketPath) {
+        if (unixSocketPath != null) {
+            return getSocketKey(unixSocketPath);
+        }
+        final String host = uri.getHost();
+        if (host == null || !(host.equalsIgnoreCase("localhost") || host.startsWith("127.") || host.equals("[::1]"))) {
+            // Servers listen on the loopback address only
+            return null;
+        }
+        final int port = uri.getPort() >= 0 ? uri.getPort() : "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+        return "tcp:" + port;
+    }
+
+    @NotNull
+    private static String getSocketKey(@NotNull Path unixSocketPath) {
+        return "unix:" + unixSocketPath.toAbsolutePath().normalize();
+    }
+
+    static void register(@NotNull String key, @NotNull RestServer<?> server) {
+        servers.put(key, server);
+    }
+
+    static void unregister(@NotNull String key, @NotNull RestServer<?> server) {
+        servers.remove(key, server);
+    }
+
+    @Nullable
+    static RestServer<?> findServer(@NotNull String key) {
+        return servers.get(key);
+    }
+
+    /**
+     * Converts value between client and server types.
+     * Values of compatible type are passed by reference if the mode allows it or if they are immutable,
+     * other values are deep-copied through a JSON tree, exactly like they would be transferred over the wire.
+     */
+    @Nullable
+    static Object copy(
+        @Nullable Object value,
+        @NotNull Type sourceType,
+        @NotNull Type targetType,
+        @NotNull Gson sourceGson,
+        @NotNull Gson targetGson,
+        @NotNull RestServer.LocalCallMode mode
+    ) {
+        if (value == null) {
+            return null;
+        }
+        Class<?> targetClass = TypeToken.get(targetType).getRawType();
+        if (targetClass.isPrimitive()) {
+            targetClass = MethodType.methodType(targetClass).wrap().returnType();
+        }
+        if (targetClass.isInstance(value) && (mode == RestServer.LocalCallMode.REFERENCE || IMMUTABLE.get(value.getClass()))) {
+            return value;
+        }
+        return targetGson.fromJson(sourceGson.toJsonTree(value, sourceType), targetType);
+    }
+}
@@ -17,14 +17,16 @@
 package org.jkiss.utils.rest;
 
 import com.google.gson.Gson;
-import com.google.gson.JsonElement;
 import org.jkiss.code.NotNull;
 import org.jkiss.code.Nullable;
 import org.jkiss.utils.CommonUtils;
 
 import java.lang.reflect.Method;
+import java.lang.reflect.Type;
 import java.net.URI;
-import java.util.Map;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 
 public class RestClient extends RpcClient {
 
@@ -35,12 +37,39 @@ public class RestClient extends RpcClient {
         return new Builder<>(uri, cls);
     }
 
+    /**
+     * Creates client of several identical servers. Requests are spread over them by the
+     * {@link Builder#setLoadBalancer load balancer}, round-robin by default.
+     */
+    @NotNull
+    public static <T> Builder<T> builder(@NotNull List<URI> uris, @NotNull Class<T> cls) {
+        if (uris.isEmpty()) {
+            throw new IllegalArgumentException("No server URIs specified");
+        }
+        final Builder<T> builder = new Builder<>(uris.get(0), cls);
+        if (uris.size() > 1) {
+            builder.servers = List.copyOf(uris);
+        }
+        return builder;
+    }
+
     public static final class Builder<T> {
         private final URI uri;
         private final Class<T> cls;
         private Gson gson;
         private RestEndpointResolver resolver;
         private String userAgent;
+        private int requestCompressionThreshold = -1;
+        private final List<RpcCallListener> callListeners = new ArrayList<>();
+        private RpcRetryPolicy retryPolicy;
+        private RpcCodec codec = JsonCodec.INSTANCE;
+        private Path unixSocketPath;
+        private boolean localCalls;
+        private List<URI> servers;
+        private RpcLoadBalancer loadBalancer;
+        private RpcResponseCache responseCache;
+        private HttpClientPool httpClientPool = HttpClientPool.getDefault();
+        private int eventIdleTimeout = HttpTransportInvocationHandler.DEFAULT_EVENT_IDLE_TIMEOUT;
 
         private Builder(@NotNull URI uri, @NotNull Class<T> cls) {
             this.uri = uri;
@@ -66,53 +95,175 @@ public class RestClient extends RpcClient {
             return this;
         }
 
+        /**
+         * Sends request bodies of at least this size gzip-compressed. The server must accept compressed requests.
+         * Negative value (default) disables request compression.
+         */
+        @NotNull
+        public Builder<T> setRequestCompressionThreshold(int requestCompressionThreshold) {
+            this.requestCompressionThreshold = requestCompressionThreshold;
+            return this;
+        }
+
+        /**
+         * Sets payload codec. The server must support it, see {@link RestServer.Builder#addCodec}.
+         * Calls fail with {@link RpcException} if the server does not support the codec.
+         */
+        @NotNull
+        public Builder<T> setCodec(@NotNull RpcCodec codec) {
+            this.codec = codec;
+            return this;
+        }
+
+        /**
+         * Connects to the server over a unix domain socket, see {@link RestServer.Builder#setUnixSocket}.
+         * Client URI is still used to build endpoint paths.
+         */
+        @NotNull
+        public Builder<T> setUnixSocket(@Nullable Path unixSocketPath) {
+            this.unixSocketPath = unixSocketPath;
+            return this;
+        }
+
+        /**
+         * Sets pool of HTTP clients shared with other clients, not used with unix sockets, see {@link HttpClientPool#getDefault()}.
+         */
+        @NotNull
+        public Builder<T> setHttpClientPool(@NotNull HttpClientPool httpClientPool) {
+            this.httpClientPool = httpClientPool;
+            return this;
+        }
+
+        /**
+         * Calls a server running in this process directly, bypassing serialization and HTTP.
+         * The server must enable it with {@link RestServer.Builder#setLocalCallMode}.
+         * Not used by clients of several servers. Direct calls skip call listeners, the response cache, retries,
+         * client metrics, deadlines and the server concurrency limit. Disabled by default.
+         */
+        @NotNull
+        public Builder<T> setLocalCalls(boolean localCalls) {
+            this.localCalls = localCalls;
+            return this;
+        }
+
+        /**
+         * Sets policy of retrying and hedging calls, see {@link Idempotent}. Calls are not repeated by default.
+         */
+        @NotNull
+        public Builder<T> setRetryPolicy(@Nullable RpcRetryPolicy retryPolicy) {
+            this.retryPolicy = retryPolicy;
+            return this;
+        }
+
+        /**
+         * Sets strategy of choosing server for each request of a client created with {@link #builder(List, Class)}.
+         */
+        @NotNull
+        public Builder<T> setLoadBalancer(@NotNull RpcLoadBalancer loadBalancer) {
+            this.loadBalancer = loadBalancer;
+            return this;
+        }
+
+        /**
+         * Sets cache of results of {@link CacheResult} methods. The cache may be shared by several clients.
+         */
+        @NotNull
+        public Builder<T> setResponseCache(@Nullable RpcResponseCache responseCache) {
+            this.responseCache = responseCache;
+            return this;
+        }
+
+        /**
+         * Sets time (in seconds) after which event subscriptions, see {@link java.util.concurrent.Flow.Publisher} results,
+         * fail with {@link RpcException} if neither events nor heartbeats are received. Must be a few times longer
+         * than the server heartbeat interval, see {@link RestServer.Builder#setEventHeartbeat}. Zero disables the timeout.
+         */
+        @NotNull
+        public Builder<T> setEventIdleTimeout(int eventIdleTimeout) {
+            this.eventIdleTimeout = eventIdleTimeout;
+            return this;
+        }
+
+        /**
+         * Adds listener of calls, e.g. {@link RpcCallStatistics}.
+         */
+        @NotNull
+        public Builder<T> addCallListener(@NotNull RpcCallListener listener) {
+            this.callListeners.add(listener);
+            return this;
+        }
+
         @NotNull
         public T create() {
-            return createProxy(
-                cls,
-                new RestInvocationHandler(cls, uri, gson, resolver, userAgent));
+            final RpcTransport transport = unixSocketPath != null
+                ? new UnixSocketTransport(unixSocketPath)
+                : new HttpClientTransport(httpClientPool);
+            final RestInvocationHandler handler = new RestInvocationHandler(cls, uri, gson, resolver, userAgent, transport);
+            handler.setRequestCompressionThreshold(requestCompressionThreshold);
+            handler.setRetryPolicy(retryPolicy);
+            for (RpcCallListener listener : callListeners) {
+                handler.addCallListener(listener);
+            }
+            handler.setCodec(codec);
+            handler.setResponseCache(responseCache);
+            handler.setEventIdleTimeout(eventIdleTimeout);
+            if (servers != null) {
+                handler.setServers(servers, loadBalancer != null ? loadBalancer : RpcLoadBalancer.roundRobin());
+            } else if (localCalls) {
+                handler.localKey = LocalCalls.getClientKey(uri, unixSocketPath);
+            }
+            return createProxy(cls, handler);
         }
     }
 
     static class RestInvocationHandler extends HttpTransportInvocationHandler {
 
         private final RestEndpointResolver resolver;
+        private String localKey;
 
         RestInvocationHandler(
             @NotNull Class<?> clientClass,
             @NotNull URI uri,
             @NotNull Gson gson,
             @NotNull RestEndpointResolver resolver,
-            @NotNull String userAgent
+            @NotNull String userAgent,
+            @NotNull RpcTransport transport
         ) {
-            super(clientClass, uri, gson, userAgent);
+            super(clientClass, uri, gson, userAgent, transport);
             this.resolver = resolver;
         }
 
+        @NotNull
         @Override
-        protected String invokeRemoteMethod(
-            @NotNull Method method,
-            @Nullable RequestMapping mapping,
-            @NotNull Map<String, JsonElement> values
-        ) {
-            try {
-                String endpoint = mapping == null ? null : mapping.value();
-                if (CommonUtils.isEmpty(endpoint)) {
-                    endpoint = resolver.generateEndpointName(method.getName());
+        protected URI resolveEndpoint(@NotNull Method method, @Nullable RequestMapping mapping) {
+            String endpoint = mapping == null ? null : mapping.value();
+            if (CommonUtils.isEmpty(endpoint)) {
+                endpoint = resolver.generateEndpointName(method.getName());
+            }
+            StringBuilder url = new StringBuilder();
+            url.append(uri);
+            if (url.charAt(url.length() - 1) != '/') url.append('/');
+            url.append(endpoint);
+            return URI.create(url.toString());
+        }
+
+        @Nullable
+        @Override
+        protected Object callRemoteMethod(
+            @NotNull RpcMethodDescriptor descriptor,
+            @NotNull Object[] args,
+            @NotNull Type returnType
+        ) throws RpcException {
+            if (localKey != null) {
+                final RestServer<?> server = LocalCalls.findServer(localKey);
+                if (server != null) {
+                    final Object result = server.invokeLocal(descriptor, args, returnType, gson);
+                    if (result != LocalCalls.NOT_HANDLED) {
+                        return result;
+                    }
                 }
-                StringBuilder url = new StringBuilder();
-                url.append(uri);
-                if (url.charAt(url.length() - 1) != '/') url.append('/');
-                url.append(endpoint);
-
-                String requestString = gson.toJson(values);
-
-                return super.invokeRemoteMethodOverHttp(URI.create(url.toString()), requestString, mapping);
-            } catch (RuntimeException e) {
-                throw e;
-            } catch (Exception e) {
-                throw new RpcException(e);
             }
+            return super.callRemoteMethod(descriptor, args, returnType);
         }
 
     }
@@ -17,36 +17,99 @@
 package org.jkiss.utils.rest;
 
 import com.google.gson.Gson;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonNull;
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
 import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.google.gson.stream.MalformedJsonException;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.spi.HttpServerProvider;
 import org.jkiss.code.NotNull;
 import org.jkiss.code.Nullable;
 import org.jkiss.utils.CommonUtils;
+import org.jkiss.utils.IOUtils;
+import org.jkiss.utils.io.CountingInputStream;
+import org.jkiss.utils.io.CountingOutputStream;
+import org.jkiss.utils.io.FastByteArrayOutputStream;
 
 import java.io.*;
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
 import java.lang.reflect.Parameter;
+import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.URI;
 import java.nio.charset.StandardCharsets;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.file.Path;
+import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.Predicate;
+import java.util.stream.BaseStream;
+import java.util.stream.Stream;
+import java.util.zip.ZipException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class RestServer<T> {
     private static final Logger log = Logger.getLogger(RestServer.class.getName());
+    private static final int DEFAULT_MAX_THREADS = Math.max(10, Runtime.getRuntime().availableProcessors());
+    private static final Type METRICS_SNAPSHOT_TYPE = TypeToken.getParameterized(
+        Map.class, String.class, EndpointMetrics.Snapshot.class).getType();
+
+    /**
+     * Mapping of the metrics snapshot, see {@link Builder#setMetricsMapping}.
+     */
+    public static final String METRICS_MAPPING = "_metrics";
+    private static final InetSocketAddress LOCAL_ADDRESS = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+    private static final int PRIORITY_THREADS = 2;
+    private static final int OVERFLOW_THREADS = 2;
+    // Set in threads of the overflow dispatcher, whose requests are rejected as overloaded
+    private static final ThreadLocal<Boolean> DISPATCH_OVERFLOW = new ThreadLocal<>();
+    private static final String RETRY_AFTER = "1";
+    private static final int DEFAULT_EVENT_HEARTBEAT = 15;
+
     private HttpServer server;
+    private final int maxThreads;
+    private final int maxQueueSize;
+    private final boolean virtualThreads;
+    // Not used by servers of an external engine, they run requests in their own threads
+    @Nullable
+    private final Executor executor;
+    private final boolean ownsExecutor;
+    private final ExecutorService priorityExecutor;
+    // Parses requests of the JDK server and hands them off to the executors
+    @Nullable
+    private ExecutorService dispatchExecutor;
+    private final RpcConcurrencyLimit concurrencyLimit;
+    // Event subscriptions hold a worker thread for the life of the stream, so they are capped separately
+    private final Semaphore eventSubscriptions;
+    private final RequestHandler<T> handler;
+    private final LocalCallMode localCallMode;
+    private String localKey;
+
+    /**
+     * How calls of in-process clients are dispatched, see {@link Builder#setLocalCallMode}.
+     */
+    public enum LocalCallMode {
+        /**
+         * Arguments and results are deep-copied, so neither side sees changes made by the other.
+         * Immutable values are passed by reference.
+         */
+        COPY,
+        /**
+         * Arguments and results are passed by reference, if their types are compatible.
+         * Neither side may modify them.
+         */
+        REFERENCE
+    }
 
     public RestServer(
         @NotNull Class<T> cls,
@@ -56,11 +119,57 @@ public class RestServer<T> {
         int port,
         int backlog
     ) throws IOException {
-        InetSocketAddress listenAddr = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
-        server = HttpServer.create(listenAddr, backlog);
-        server.createContext("/", createHandler(cls, object, gson, filter));
-        server.setExecutor(createExecutor());
+        this(new Builder<>(object, cls).setGson(gson).setFilter(filter).setPort(port).setBacklog(backlog));
+    }
+
+    private RestServer(@NotNull Builder<T> builder) throws IOException {
+        this.maxThreads = builder.maxThreads;
+        this.maxQueueSize = builder.maxQueueSize;
+        this.virtualThreads = builder.virtualThreads;
+        final boolean externalEngine = builder.serverProvider != null && builder.unixSocketPath == null;
+        this.ownsExecutor = builder.executor == null && !externalEngine;
+        this.executor = builder.executor != null || externalEngine ? builder.executor : createExecutor();
+        this.priorityExecutor = createPriorityExecutor();
+        this.concurrencyLimit = builder.concurrencyLimit;
+        this.eventSubscriptions = new Semaphore(builder.maxEventSubscriptions > 0
+            ? builder.maxEventSubscriptions
+            : Math.max(1, maxThreads / 2));
+
+        this.localCallMode = builder.localCallMode;
+        this.handler = createHandler(builder.cls, builder.object, builder.gson, builder.filter);
+        handler.configure(builder);
+        if (builder.unixSocketPath != null) {
+            server = UnixSocketHttpServer.create(builder.unixSocketPath, builder.backlog);
+        } else {
+            InetSocketAddress listenAddr = new InetSocketAddress(InetAddress.getLoopbackAddress(), builder.port);
+            server = externalEngine
+                ? builder.serverProvider.createHttpServer(listenAddr, builder.backlog)
+                : HttpServer.create(listenAddr, builder.backlog);
+        }
+        if (externalEngine) {
+            // The engine completes the exchange once the handler returns, so requests are processed in its threads
+            server.createContext("/", exchange -> handle(handler, exchange));
+            if (executor != null) {
+                server.setExecutor(executor);
+            }
+        } else {
+            server.createContext("/", exchange -> dispatch(handler, exchange));
+            if (server instanceof UnixSocketHttpServer) {
+                // Requests are parsed by the connection threads and handed off to the executor
+                server.setExecutor(null);
+            } else {
+                // The JDK server parses requests in the thread of its executor, or in its only dispatcher thread
+                // which then could be blocked by a single slow client
+                dispatchExecutor = createDispatchExecutor();
+                server.setExecutor(dispatchExecutor);
+            }
+        }
         server.start();
+
+        if (localCallMode != null) {
+            localKey = LocalCalls.getServerKey(builder.unixSocketPath, builder.unixSocketPath == null ? server.getAddress().getPort() : 0);
+            LocalCalls.register(localKey, this);
+        }
     }
 
     @NotNull
@@ -77,26 +186,256 @@ public class RestServer<T> {
     }
 
     public void stop(int delay) {
+        if (localKey != null) {
+            LocalCalls.unregister(localKey, this);
+            localKey = null;
+        }
         try {
             server.stop(delay);
 
-            final Executor executor = server.getExecutor();
-            if (executor instanceof ExecutorService) {
+            if (ownsExecutor && executor instanceof ExecutorService) {
                 ((ExecutorService) executor).shutdown();
             }
+            priorityExecutor.shutdown();
+            if (dispatchExecutor != null) {
+                dispatchExecutor.shutdown();
+            }
         } finally {
             server = null;
         }
     }
 
-    @NotNull
+    /**
+     * Returns address the server listens on, or {@code null} if it listens on a unix domain socket.
+     */
+    @Nullable
     public InetSocketAddress getAddress() {
         return server.getAddress();
     }
 
+    /**
+     * Returns path of the unix domain socket the server listens on, or {@code null} if it listens on a TCP port.
+     */
+    @Nullable
+    public Path getUnixSocketPath() {
+        return server instanceof UnixSocketHttpServer unixSocketServer ? unixSocketServer.getSocketPath() : null;
+    }
+
+    /**
+     * Returns metrics of mapped methods, by mapping. Metrics are collected for requests received over HTTP.
+     */
+    @NotNull
+    public Map<String, EndpointMetrics> getMetrics() {
+        return handler.getMetrics();
+    }
+
+    /**
+     * Invokes method for a client of this process. The call bypasses serialization, HTTP and the request executor.
+     *
+     * @return method result, or {@link LocalCalls#NOT_HANDLED} if the call must be sent over the transport
+     */
+    @Nullable
+    Object invokeLocal(
+        @NotNull RpcMethodDescriptor descriptor,
+        @NotNull Object[] args,
+        @NotNull Type returnType,
+        @NotNull Gson clientGson
+    ) throws RpcException {
+        return handler.invokeLocal(descriptor, args, returnType, clientGson, localCallMode);
+    }
+
+    /**
+     * Creates executor for request processing. Used unless an executor was passed to {@link Builder#setExecutor}.
+     */
     @NotNull
     protected Executor createExecutor() {
-        return new ThreadPoolExecutor(1, 10, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        if (virtualThreads) {
+            ExecutorService virtualExecutor = createVirtualThreadExecutor();
+            if (virtualExecutor != null) {
+                return virtualExecutor;
+            }
+            // Virtual threads are not available before Java 21
+            return Executors.newCachedThreadPool();
+        }
+        final ThreadPoolExecutor pool;
+        if (maxQueueSize > 0) {
+            // Bounded mode: requests which do not fit into the queue are rejected
+            pool = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(maxQueueSize));
+        } else {
+            pool = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        }
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Creates executor of {@link HighPriority} requests. Its few threads are started on demand.
+     */
+    @NotNull
+    private static ExecutorService createPriorityExecutor() {
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(
+            PRIORITY_THREADS, PRIORITY_THREADS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                final Thread thread = new Thread(runnable, "RPC priority request");
+                thread.setDaemon(true);
+                return thread;
+            });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Creates executor which parses requests and dispatches them to the request executors.
+     * Dispatch is short, but a client sending its request slowly holds a thread, so the number of threads
+     * is limited to the maximum number of request threads. Requests exceeding it are parsed by a few overflow
+     * threads and rejected with {@link RpcConstants#SC_UNAVAILABLE}. If overflow threads are busy as well,
+     * the engine closes the connection.
+     */
+    @NotNull
+    private ExecutorService createDispatchExecutor() {
+        final ThreadPoolExecutor overflow = new ThreadPoolExecutor(
+            OVERFLOW_THREADS, OVERFLOW_THREADS, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(maxThreads), runnable -> {
+                final Thread thread = new Thread(() -> {
+                    DISPATCH_OVERFLOW.set(Boolean.TRUE);
+                    runnable.run();
+                }, "RPC request dispatcher (overflow)");
+                thread.setDaemon(true);
+                return thread;
+            });
+        overflow.allowCoreThreadTimeOut(true);
+        return new ThreadPoolExecutor(0, maxThreads, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+            final Thread thread = new Thread(runnable, "RPC request dispatcher");
+            thread.setDaemon(true);
+            return thread;
+        }, (runnable, pool) -> {
+            if (pool.isShutdown()) {
+                throw new RejectedExecutionException("Server is stopped");
+            }
+            overflow.execute(runnable);
+        }) {
+            @Override
+            protected void terminated() {
+                overflow.shutdown();
+            }
+        };
+    }
+
+    @Nullable
+    private static ExecutorService createVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private void dispatch(@NotNull RequestHandler<T> handler, @NotNull HttpExchange exchange) throws IOException {
+        // Time spent in the executor queue counts towards the call deadline
+        final long receivedTime = System.nanoTime();
+        if (handler.isPriorityRequest(exchange)) {
+            // Control requests bypass the limit and the queue of regular requests
+            execute(priorityExecutor, handler, exchange, receivedTime, null, null);
+            return;
+        }
+        if (DISPATCH_OVERFLOW.get() != null) {
+            // All dispatch threads are busy
+            sendOverloaded(exchange);
+            return;
+        }
+        if (handler.isEventRequest(exchange)) {
+            if (!eventSubscriptions.tryAcquire()) {
+                sendOverloaded(exchange);
+                return;
+            }
+            execute(executor, handler, exchange, receivedTime, null, eventSubscriptions);
+            return;
+        }
+        final RpcConcurrencyLimit limit = concurrencyLimit;
+        if (limit != null && !limit.tryAcquire()) {
+            sendOverloaded(exchange);
+            return;
+        }
+        execute(executor, handler, exchange, receivedTime, limit, null);
+    }
+
+    /**
+     * Processes request in the calling engine thread.
+     */
+    private void handle(@NotNull RequestHandler<T> handler, @NotNull HttpExchange exchange) throws IOException {
+        final long receivedTime = System.nanoTime();
+        if (handler.isEventRequest(exchange)) {
+            if (!eventSubscriptions.tryAcquire()) {
+                sendOverloaded(exchange);
+                return;
+            }
+            try {
+                handler.handle(exchange, receivedTime);
+            } finally {
+                eventSubscriptions.release();
+            }
+            return;
+        }
+        final RpcConcurrencyLimit limit = handler.isPriorityRequest(exchange) ? null : concurrencyLimit;
+        if (limit != null && !limit.tryAcquire()) {
+            sendOverloaded(exchange);
+            return;
+        }
+        try {
+            handler.handle(exchange, receivedTime);
+        } finally {
+            if (limit != null) {
+                limit.release(System.nanoTime() - receivedTime);
+            }
+        }
+    }
+
+    private static <T> void execute(
+        @NotNull Executor executor,
+        @NotNull RequestHandler<T> handler,
+        @NotNull HttpExchange exchange,
+        long receivedTime,
+        @Nullable RpcConcurrencyLimit limit,
+        @Nullable Semaphore permit
+    ) throws IOException {
+        try {
+            executor.execute(() -> {
+                try {
+                    handler.handle(exchange, receivedTime);
+                } catch (Throwable e) {
+                    // Already logged by the handler
+                    exchange.close();
+                } finally {
+                    if (limit != null) {
+                        limit.release(System.nanoTime() - receivedTime);
+                    }
+                    if (permit != null) {
+                        permit.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            if (limit != null) {
+                limit.release(-1);
+            }
+            if (permit != null) {
+                permit.release();
+            }
+            sendOverloaded(exchange);
+        }
+    }
+
+    /**
+     * Rejects request without processing it, so the client may safely repeat it later.
+     */
+    private static void sendOverloaded(@NotNull HttpExchange exchange) throws IOException {
+        try (exchange) {
+            byte[] result = "Server is overloaded".getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "text/plain");
+            exchange.getResponseHeaders().add(RpcConstants.HEADER_RETRY_AFTER, RETRY_AFTER);
+            exchange.sendResponseHeaders(RpcConstants.SC_UNAVAILABLE, result.length);
+            try (OutputStream responseBody = exchange.getResponseBody()) {
+                responseBody.write(result);
+            }
+        }
     }
 
     @NotNull
@@ -110,12 +449,20 @@ public class RestServer<T> {
     }
 
     protected static class RequestHandler<T> implements HttpHandler {
-        private static final Type REQUEST_TYPE = new TypeToken<Map<String, JsonElement>>() {}.getType();
-
         private final T object;
         private final Gson gson;
-        private final Map<String, Method> mappings;
+        private final Map<String, MethodPlan> mappings;
         private final Predicate<InetSocketAddress> filter;
+        private boolean chunkedResponses;
+        private int compressionThreshold = HttpCompression.DEFAULT_THRESHOLD;
+        private final Map<String, RpcCodec> codecs = new LinkedHashMap<>();
+        // Gson of codecs which configure their own, see RpcCodec.configureGson
+        private final Map<RpcCodec, Gson> codecGsons = new HashMap<>();
+        private boolean metricsMapping;
+        private boolean interruptOnCancel;
+        private boolean requestCoalescing;
+        private int eventHeartbeat = DEFAULT_EVENT_HEARTBEAT;
+        private final Map<FlightKey, CompletableFuture<Response<?>>> flights = new ConcurrentHashMap<>();
 
         protected RequestHandler(
             @NotNull Class<T> cls,
@@ -125,115 +472,715 @@ public class RestServer<T> {
         ) {
             this.object = object;
             this.gson = gson;
-            this.mappings = createMappings(cls);
+            this.mappings = createMethodPlans(createMappings(cls));
             this.filter = filter;
+            this.codecs.put(JsonCodec.CONTENT_TYPE, JsonCodec.INSTANCE);
         }
 
         @Override
         public void handle(HttpExchange exchange) throws IOException {
+            handle(exchange, System.nanoTime());
+        }
+
+        /**
+         * Handles request received at the given time ({@link System#nanoTime()}).
+         */
+        protected void handle(@NotNull HttpExchange exchange, long receivedTime) throws IOException {
+            final long startTime = System.nanoTime();
+            EndpointMetrics metrics = null;
+            boolean succeeded = false;
 
             try (exchange) {
                 Response<?> response;
                 try {
-                    response = executeRequest(exchange);
+                    response = executeRequest(exchange, receivedTime);
                 } catch (IOException e) {
                     log.log(Level.SEVERE, "IO error", e);
                     response = new Response<>(e.getMessage(), String.class, 500);
                 }
+                if (response.plan != null) {
+                    // Request of a mapped method, counted as started by executeRequest
+                    metrics = response.plan.metrics;
+                }
 
                 Object responseObject = response.object;
                 if (responseObject == null) {
                     responseObject = "Internal error";
                 }
-                if (response.code == RpcConstants.SC_OK) {
-                    String responseText;
-                    if (response.type == void.class) {
-                        responseText = CommonUtils.toString(response.object);
-                        exchange.getResponseHeaders().add("Content-Type", "text/plain");
+                if (response.code != RpcConstants.SC_OK) {
+                    sendError(exchange, response.code, responseObject);
+                } else if (response.type == void.class) {
+                    sendText(exchange, RpcConstants.SC_OK, CommonUtils.toString(response.object));
+                    succeeded = true;
+                } else if (response.plan != null && response.plan.eventResult) {
+                    succeeded = sendEvents(exchange, response.plan, (Flow.Publisher<?>) response.object);
+                } else {
+                    final String encoding = compressionThreshold < 0
+                        ? null
+                        : HttpCompression.negotiate(exchange.getRequestHeaders().getFirst(HttpCompression.HEADER_ACCEPT_ENCODING));
+                    final RpcCodec codec = getResponseCodec(exchange);
+                    final long serializationStart = System.nanoTime();
+                    if (response.content != null) {
+                        metrics.addBytesOut(response.content.size());
+                        succeeded = sendContent(exchange, response.content, codec, encoding);
+                    } else if (chunkedResponses) {
+                        succeeded = sendChunkedResponse(exchange, response, codec, encoding);
                     } else {
-                        try {
-                            responseText = gson.toJson(response.object, response.type);
-                        } catch (Throwable e) {
-                            // Serialization error
-                            StringWriter buf = new StringWriter();
-                            new RpcException("JSON serialization error: " + e.getMessage(), e).printStackTrace(new PrintWriter(buf, true));
-
-                            sendError(exchange, RpcConstants.SC_SERVER_ERROR, buf.toString());
-                            return;
-                        }
-                        exchange.getResponseHeaders().add("Content-Type", "application/json");
+                        succeeded = sendBufferedResponse(exchange, response, codec, encoding);
                     }
-                    byte[] responseBytes = responseText.getBytes(StandardCharsets.UTF_8);
-
-                    exchange.sendResponseHeaders(RpcConstants.SC_OK, responseBytes.length);
-                    try (OutputStream responseBody = exchange.getResponseBody()) {
-                        responseBody.write(responseBytes);
+                    if (metrics != null) {
+                        metrics.getSerializationTime().record(System.nanoTime() - serializationStart);
                     }
-                } else {
-                    sendError(exchange, response.code, responseObject);
                 }
+            } catch (IOException e) {
+                // Usually the client has gone, e.g. a hedged call cancelled its duplicate request
+                log.log(Level.FINE, "Failed to send response: " + e.getMessage(), e);
+                throw e;
             } catch (Throwable e) {
                 log.log(Level.SEVERE, "Internal IO error", e);
                 throw e;
+            } finally {
+                if (metrics != null) {
+                    metrics.requestCompleted(succeeded, System.nanoTime() - startTime);
+                }
+            }
+        }
+
+        /**
+         * Whether request is served in the priority lane: requests of {@link HighPriority} methods and of the metrics mapping.
+         */
+        protected boolean isPriorityRequest(@NotNull HttpExchange exchange) {
+            final String path = trimLeadingSlashes(exchange.getRequestURI().getPath());
+            final MethodPlan plan = mappings.get(path);
+            if (plan != null) {
+                return plan.priority;
+            }
+            return metricsMapping && METRICS_MAPPING.equals(path);
+        }
+
+        /**
+         * Whether request subscribes to events of a method returning {@link Flow.Publisher}.
+         */
+        protected boolean isEventRequest(@NotNull HttpExchange exchange) {
+            final MethodPlan plan = mappings.get(trimLeadingSlashes(exchange.getRequestURI().getPath()));
+            return plan != null && plan.eventResult;
+        }
+
+        /**
+         * Returns metrics of mapped methods, by mapping.
+         */
+        @NotNull
+        protected Map<String, EndpointMetrics> getMetrics() {
+            final Map<String, EndpointMetrics> metrics = new TreeMap<>();
+            for (MethodPlan plan : mappings.values()) {
+                metrics.put(plan.endpoint, plan.metrics);
+            }
+            return Collections.unmodifiableMap(metrics);
+        }
+
+        /**
+         * Applies server configuration. Called by the server right after the handler is created.
+         */
+        protected void configure(@NotNull Builder<T> builder) {
+            this.chunkedResponses = builder.chunkedResponses;
+            this.compressionThreshold = builder.compressionThreshold;
+            this.metricsMapping = builder.metricsMapping;
+            this.interruptOnCancel = builder.interruptOnCancel;
+            this.requestCoalescing = builder.requestCoalescing;
+            this.eventHeartbeat = builder.eventHeartbeat;
+            for (RpcCodec codec : builder.codecs) {
+                this.codecs.put(codec.getContentType(), codec);
+                final Gson codecGson = codec.configureGson(gson);
+                if (codecGson != gson) {
+                    this.codecGsons.put(codec, codecGson);
+                }
+            }
+        }
+
+        /**
+         * Returns codec matching request {@code Content-Type}.
+         * Requests of other content types are decoded as JSON.
+         */
+        @NotNull
+        protected RpcCodec getRequestCodec(@NotNull HttpExchange exchange) {
+            final RpcCodec codec = codecs.get(getMimeType(exchange.getRequestHeaders().getFirst("Content-Type")));
+            return codec != null ? codec : JsonCodec.INSTANCE;
+        }
+
+        /**
+         * Returns the first codec listed in the {@code Accept} header, or the request codec.
+         */
+        @NotNull
+        protected RpcCodec getResponseCodec(@NotNull HttpExchange exchange) {
+            final String accept = exchange.getRequestHeaders().getFirst("Accept");
+            if (accept != null) {
+                for (String item : accept.split(",")) {
+                    final RpcCodec codec = codecs.get(getMimeType(item));
+                    if (codec != null) {
+                        return codec;
+                    }
+                }
+            }
+            return getRequestCodec(exchange);
+        }
+
+        @Nullable
+        private static String getMimeType(@Nullable String contentType) {
+            if (contentType == null) {
+                return null;
+            }
+            final int paramsPos = contentType.indexOf(';');
+            return (paramsPos < 0 ? contentType : contentType.substring(0, paramsPos)).trim().toLowerCase(Locale.ENGLISH);
+        }
+
+        /**
+         * Returns {@code false} if the result could not be serialized.
+         */
+        private boolean sendBufferedResponse(
+            @NotNull HttpExchange exchange,
+            @NotNull Response<?> response,
+            @NotNull RpcCodec codec,
+            @Nullable String encoding
+        ) throws IOException {
+            final FastByteArrayOutputStream buffer = new FastByteArrayOutputStream();
+            try {
+                writeResponse(buffer, response, codec);
+            } catch (Throwable e) {
+                // Serialization error
+                StringWriter buf = new StringWriter();
+                new RpcException("JSON serialization error: " + e.getMessage(), e).printStackTrace(new PrintWriter(buf, true));
+
+                sendError(exchange, RpcConstants.SC_SERVER_ERROR, buf.toString());
+                return false;
+            }
+            if (response.plan != null) {
+                response.plan.metrics.addBytesOut(buffer.size());
+            }
+            return sendContent(exchange, buffer, codec, encoding);
+        }
+
+        /**
+         * Sends serialized response, compressed if it is large enough.
+         */
+        private boolean sendContent(
+            @NotNull HttpExchange exchange,
+            @NotNull FastByteArrayOutputStream buffer,
+            @NotNull RpcCodec codec,
+            @Nullable String encoding
+        ) throws IOException {
+            addContentHeaders(exchange, codec);
+            if (encoding != null && buffer.size() >= compressionThreshold) {
+                // Compressed size is unknown until compression ends, so the response is chunked
+                exchange.getResponseHeaders().set(HttpCompression.HEADER_CONTENT_ENCODING, encoding);
+                exchange.sendResponseHeaders(RpcConstants.SC_OK, 0);
+                try (OutputStream responseBody = HttpCompression.compress(exchange.getResponseBody(), encoding)) {
+                    responseBody.write(buffer.getInternalBuffer(), 0, buffer.size());
+                }
+                return true;
+            }
+            exchange.sendResponseHeaders(RpcConstants.SC_OK, buffer.size());
+            try (OutputStream responseBody = exchange.getResponseBody()) {
+                responseBody.write(buffer.getInternalBuffer(), 0, buffer.size());
+            }
+            return true;
+        }
+
+        /**
+         * Serializes response straight into the response body using chunked transfer encoding.
+         * Headers are sent before serialization starts, so a serialization error truncates the response.
+         * If compression was negotiated then the response is compressed once it grows over the threshold.
+         *
+         * @return {@code false} if the response was truncated
+         */
+        private boolean sendChunkedResponse(
+            @NotNull HttpExchange exchange,
+            @NotNull Response<?> response,
+            @NotNull RpcCodec codec,
+            @Nullable String encoding
+        ) throws IOException {
+            addContentHeaders(exchange, codec);
+            final OutputStream body;
+            if (encoding != null) {
+                body = new CompressingResponseStream(exchange, encoding, compressionThreshold);
+            } else {
+                exchange.sendResponseHeaders(RpcConstants.SC_OK, 0);
+                body = exchange.getResponseBody();
+            }
+            final CountingOutputStream counter = new CountingOutputStream(body);
+            try (OutputStream responseBody = counter) {
+                writeResponse(responseBody, response, codec);
+            } catch (IOException e) {
+                throw e;
+            } catch (Throwable e) {
+                log.log(Level.SEVERE, "JSON serialization error, response is truncated", e);
+                return false;
+            } finally {
+                if (response.plan != null) {
+                    response.plan.metrics.addBytesOut(counter.getCount());
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Streams items of the published result as server-sent events until the publisher completes
+         * or the client goes away. Items are requested one by one, after the previous one is written,
+         * so a slow client slows down the publisher. The request thread is held for the whole subscription.
+         *
+         * @return {@code false} if the publisher failed or the client has gone
+         */
+        private boolean sendEvents(
+            @NotNull HttpExchange exchange,
+            @NotNull MethodPlan plan,
+            @Nullable Flow.Publisher<?> publisher
+        ) throws IOException {
+            exchange.getResponseHeaders().add("Content-Type", RpcConstants.CONTENT_TYPE_EVENT_STREAM);
+            exchange.getResponseHeaders().add("Cache-Control", "no-cache");
+            // The stream may be endless, so the client can't drain it to reuse the connection
+            exchange.getResponseHeaders().add("Connection", "close");
+            exchange.sendResponseHeaders(RpcConstants.SC_OK, 0);
+            try (OutputStream responseBody = exchange.getResponseBody()) {
+                if (publisher == null) {
+                    // No events
+                    return true;
+                }
+                final EventStreamSubscriber subscriber = new EventStreamSubscriber(responseBody, plan, gson);
+                publisher.subscribe(subscriber);
+                return subscriber.await(eventHeartbeat);
+            }
+        }
+
+        private void addContentHeaders(@NotNull HttpExchange exchange, @NotNull RpcCodec codec) {
+            exchange.getResponseHeaders().add("Content-Type", codec.getContentType());
+            if (compressionThreshold >= 0) {
+                exchange.getResponseHeaders().add("Vary", HttpCompression.HEADER_ACCEPT_ENCODING);
+            }
+        }
+
+        private <R> void writeResponse(
+            @NotNull OutputStream out,
+            @NotNull Response<R> response,
+            @NotNull RpcCodec codec
+        ) throws IOException {
+            final Gson codecGson = codecGsons.get(codec);
+            final JsonWriter jsonWriter = codec.createWriter(codecGson != null ? codecGson : gson, out);
+            final MethodPlan plan = response.plan;
+            if (plan == null) {
+                (codecGson != null ? codecGson : gson).toJson(response.object, response.type, jsonWriter);
+            } else if (plan.streamResult) {
+                writeElements(jsonWriter, response.object, plan.getResultAdapter(codecGson));
+            } else {
+                plan.getResultAdapter(codecGson).write(jsonWriter, response.object);
+            }
+            jsonWriter.flush();
+        }
+
+        /**
+         * Writes {@link Iterator} or {@link BaseStream} result as JSON array, element by element.
+         */
+        private static void writeElements(
+            @NotNull JsonWriter writer,
+            @Nullable Object result,
+            @NotNull TypeAdapter<Object> elementAdapter
+        ) throws IOException {
+            if (result == null) {
+                writer.nullValue();
+                return;
+            }
+            final BaseStream<?, ?> stream = result instanceof BaseStream<?, ?> bs ? bs : null;
+            final Iterator<?> iterator = stream != null ? stream.iterator() : (Iterator<?>) result;
+            try {
+                writer.beginArray();
+                while (iterator.hasNext()) {
+                    elementAdapter.write(writer, iterator.next());
+                }
+                writer.endArray();
+            } finally {
+                if (stream != null) {
+                    stream.close();
+                }
             }
         }
 
         private void sendError(HttpExchange exchange, int resultCode, Object responseObject) throws IOException {
-            String responseText = responseObject.toString();
+            sendText(exchange, resultCode, responseObject.toString());
+        }
+
+        private void sendText(HttpExchange exchange, int resultCode, String responseText) throws IOException {
             byte[] result = responseText.getBytes(StandardCharsets.UTF_8);
 
             exchange.getResponseHeaders().add("Content-Type", "text/plain");
-            exchange.sendResponseHeaders(resultCode, result.length);
+            exchange.sendResponseHeaders(resultCode, result.length == 0 ? -1 : result.length);
             try (OutputStream responseBody = exchange.getResponseBody()) {
-                responseBody.write(result);
+                if (result.length > 0) {
+                    // Body of a response without content is closed right away
+                    responseBody.write(result);
+                }
             }
         }
 
         @NotNull
-        protected Response<?> executeRequest(@NotNull HttpExchange exchange) throws IOException {
+        protected Response<?> executeRequest(@NotNull HttpExchange exchange, long receivedTime) throws IOException {
             if (!filter.test(exchange.getRemoteAddress())) {
                 return new Response<>("Access is forbidden", String.class, RpcConstants.SC_FORBIDDEN);
             }
 
+            if (metricsMapping && METRICS_MAPPING.equals(trimLeadingSlashes(exchange.getRequestURI().getPath()))) {
+                return new Response<>(getMetricsSnapshot(), METRICS_SNAPSHOT_TYPE, RpcConstants.SC_OK);
+            }
+
             if (!exchange.getRequestMethod().equalsIgnoreCase("POST")) {
                 return new Response<>("Unsupported method", String.class, RpcConstants.SC_UNSUPPORTED);
             }
 
             final URI uri = exchange.getRequestURI();
-            final String path = uri.getPath().replaceAll("^/+", "");
-            final Method method = mappings.get(path);
+            final String path = trimLeadingSlashes(uri.getPath());
+            final MethodPlan plan = mappings.get(path);
 
-            if (method == null) {
+            if (plan == null) {
                 return new Response<>("Mapping " + path + " not found", String.class, RpcConstants.SC_NOT_FOUND);
             }
 
-            final Map<String, JsonElement> request;
+            // Responses of mapped methods carry the plan, so the request is completed in metrics once the response is sent
+            final EndpointMetrics metrics = plan.metrics;
+            metrics.requestStarted();
+            try {
+                return invokeMethod(exchange, plan, createContext(exchange, receivedTime));
+            } catch (IOException e) {
+                metrics.requestAborted();
+                throw e;
+            }
+        }
+
+        @NotNull
+        private Response<?> invokeMethod(
+            @NotNull HttpExchange exchange,
+            @NotNull MethodPlan plan,
+            @NotNull RpcContext context
+        ) throws IOException {
+            if (context.isExpired()) {
+                // The client does not wait for the result anymore
+                return createDeadlineResponse(plan);
+            }
+            final String contentEncoding = exchange.getRequestHeaders().getFirst(HttpCompression.HEADER_CONTENT_ENCODING);
+            if (!HttpCompression.isSupported(contentEncoding)) {
+                return new Response<>("Unsupported content encoding: " + contentEncoding, String.class, plan, RpcConstants.SC_UNSUPPORTED_MEDIA_TYPE);
+            }
+            if (requestCoalescing && plan.coalescible) {
+                return invokeCoalesced(exchange, plan, context, contentEncoding);
+            }
+
+            final long deserializationStart = System.nanoTime();
+            final Object[] values;
+            final CountingInputStream requestBody = new CountingInputStream(
+                HttpCompression.decompress(exchange.getRequestBody(), contentEncoding));
+            try {
+                values = readParameters(plan, getRequestCodec(exchange), requestBody);
+            } catch (JsonParseException | MalformedJsonException | ZipException | IllegalStateException e) {
+                return new Response<>("Invalid request: " + e.getMessage(), String.class, plan, RpcConstants.SC_BAD_REQUEST);
+            } finally {
+                plan.metrics.addBytesIn(requestBody.getCount());
+            }
+
+            plan.metrics.getDeserializationTime().record(System.nanoTime() - deserializationStart);
+            return invokeMethod(exchange, plan, context, values);
+        }
 
-            try (Reader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody()))) {
-                request = gson.fromJson(reader, REQUEST_TYPE);
+        /**
+         * Invokes method with the given parameter values.
+         */
+        @NotNull
+        private Response<?> invokeMethod(
+            @NotNull HttpExchange exchange,
+            @NotNull MethodPlan plan,
+            @NotNull RpcContext context,
+            @NotNull Object[] values
+        ) {
+            final long invocationStart = System.nanoTime();
+            final ScheduledFuture<?> deadlineTimer = context.hasDeadline()
+                ? DeadlineTimer.INSTANCE.schedule(context::cancel, context.getRemainingTime(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS)
+                : null;
+            context.attach(interruptOnCancel ? Thread.currentThread() : null);
+            try {
+                Object result = plan.invoker.invokeExact(values);
+                if (plan.asyncResult && result != null) {
+                    // Asynchronous method: respond with the value of the completed stage
+                    final CompletableFuture<?> future = ((CompletionStage<?>) result).toCompletableFuture();
+                    context.setFuture(future);
+                    result = future.join();
+                }
+                if (context.isCancelled()) {
+                    return createDeadlineResponse(plan);
+                }
+                return createResponseContent(result, plan);
+            } catch (Throwable e) {
+                if (context.isCancelled()) {
+                    log.log(Level.FINE, "RPC call '" + exchange.getRequestURI() + "' cancelled: " + e.getMessage());
+                    return createDeadlineResponse(plan);
+                }
+                if (e instanceof CompletionException && e.getCause() != null) {
+                    e = e.getCause();
+                }
+                log.log(Level.SEVERE, "RPC call '" + exchange.getRequestURI() + "' failed: " + e.getMessage());
+                return createResponseError(e, plan);
+            } finally {
+                context.detach();
+                if (deadlineTimer != null) {
+                    deadlineTimer.cancel(false);
+                }
+                plan.metrics.getInvocationTime().record(System.nanoTime() - invocationStart);
             }
+        }
 
-            final Parameter[] parameters = method.getParameters();
-            final Object[] values = new Object[parameters.length];
+        /**
+         * Invokes method once for all concurrent requests with the same body. The first request invokes the method
+         * and serializes its result, the rest wait for it and get the same response.
+         * If the first request is cancelled by its own deadline, the waiting requests invoke the method again.
+         */
+        @NotNull
+        private Response<?> invokeCoalesced(
+            @NotNull HttpExchange exchange,
+            @NotNull MethodPlan plan,
+            @NotNull RpcContext context,
+            @Nullable String contentEncoding
+        ) throws IOException {
+            final long deserializationStart = System.nanoTime();
+            final byte[] body;
+            try (InputStream requestBody = HttpCompression.decompress(exchange.getRequestBody(), contentEncoding)) {
+                body = requestBody.readAllBytes();
+            } catch (ZipException e) {
+                return new Response<>("Invalid request: " + e.getMessage(), String.class, plan, RpcConstants.SC_BAD_REQUEST);
+            }
+            plan.metrics.addBytesIn(body.length);
+            final RpcCodec requestCodec = getRequestCodec(exchange);
+            final RpcCodec responseCodec = getResponseCodec(exchange);
+            final FlightKey key = new FlightKey(plan, requestCodec, responseCodec, body);
+            CompletableFuture<Response<?>> flight = new CompletableFuture<>();
+            for (CompletableFuture<Response<?>> leader; (leader = flights.putIfAbsent(key, flight)) != null; ) {
+                final Response<?> response = awaitFlight(leader, plan, context);
+                if (response != null) {
+                    plan.metrics.requestCoalesced();
+                    return response;
+                }
+                // The leader was cancelled, its deadline is not ours
+                flight = new CompletableFuture<>();
+            }
 
-            for (int i = 0; i < parameters.length; i++) {
-                final Parameter p = parameters[i];
-                final RequestParameter param = p.getDeclaredAnnotation(RequestParameter.class);
-                final JsonElement element = request.getOrDefault(param.value(), JsonNull.INSTANCE);
-                values[i] = gson.fromJson(element, p.getParameterizedType());
+            Response<?> response = null;
+            try {
+                try {
+                    final Object[] values = readParameters(plan, requestCodec, new ByteArrayInputStream(body));
+                    plan.metrics.getDeserializationTime().record(System.nanoTime() - deserializationStart);
+                    response = invokeMethod(exchange, plan, context, values);
+                } catch (JsonParseException | MalformedJsonException | IllegalStateException e) {
+                    response = new Response<>("Invalid request: " + e.getMessage(), String.class, plan, RpcConstants.SC_BAD_REQUEST);
+                }
+                if (response.code == RpcConstants.SC_OK) {
+                    response = serializeResponse(response, responseCodec);
+                }
+                return response;
+            } finally {
+                // Requests arriving from now on invoke the method again
+                flights.remove(key, flight);
+                if (context.isCancelled() || response == null) {
+                    // Waiting requests invoke the method themselves
+                    flight.complete(null);
+                } else {
+                    flight.complete(response);
+                }
+            }
+        }
+
+        /**
+         * Waits for the response of the leading request. Returns {@code null} if it was not completed
+         * and the method must be invoked again.
+         */
+        @Nullable
+        private static Response<?> awaitFlight(
+            @NotNull CompletableFuture<Response<?>> flight,
+            @NotNull MethodPlan plan,
+            @NotNull RpcContext context
+        ) {
+            try {
+                if (context.hasDeadline()) {
+                    return flight.get(context.getRemainingTime(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+                }
+                return flight.get();
+            } catch (TimeoutException e) {
+                return createDeadlineResponse(plan);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return new Response<>("Request interrupted", String.class, plan, RpcConstants.SC_SERVER_ERROR);
+            } catch (ExecutionException e) {
+                return createResponseError(e.getCause(), plan);
             }
+        }
 
+        /**
+         * Serializes response content, so it can be sent to several clients.
+         */
+        @NotNull
+        private Response<?> serializeResponse(@NotNull Response<?> response, @NotNull RpcCodec codec) {
+            final FastByteArrayOutputStream buffer = new FastByteArrayOutputStream();
+            final long serializationStart = System.nanoTime();
             try {
-                final Object result = method.invoke(object, values);
-                final Type type = method.getGenericReturnType();
-                return createResponseContent(result, type);
+                writeResponse(buffer, response, codec);
             } catch (Throwable e) {
-                if (e instanceof InvocationTargetException ite) {
-                    e = ite.getTargetException();
+                StringWriter buf = new StringWriter();
+                new RpcException("JSON serialization error: " + e.getMessage(), e).printStackTrace(new PrintWriter(buf, true));
+                return new Response<>(buf.toString(), String.class, response.plan, RpcConstants.SC_SERVER_ERROR);
+            }
+            if (response.plan != null) {
+                response.plan.metrics.getSerializationTime().record(System.nanoTime() - serializationStart);
+            }
+            return new Response<>(buffer, response.plan);
+        }
+
+        /**
+         * Creates context of the call. Its deadline is derived from the timeout sent by the client.
+         */
+        @NotNull
+        private static RpcContext createContext(@NotNull HttpExchange exchange, long receivedTime) {
+            final String timeout = exchange.getRequestHeaders().getFirst(RpcConstants.HEADER_TIMEOUT);
+            final long timeoutMs = timeout == null ? 0 : CommonUtils.toLong(timeout.trim(), 0);
+            if (timeoutMs <= 0) {
+                return new RpcContext(0, false);
+            }
+            return new RpcContext(receivedTime + TimeUnit.MILLISECONDS.toNanos(timeoutMs), true);
+        }
+
+        @NotNull
+        private static Response<String> createDeadlineResponse(@NotNull MethodPlan plan) {
+            return new Response<>("Deadline exceeded", String.class, plan, RpcConstants.SC_GATEWAY_TIMEOUT);
+        }
+
+        @NotNull
+        private Map<String, EndpointMetrics.Snapshot> getMetricsSnapshot() {
+            final Map<String, EndpointMetrics.Snapshot> snapshot = new LinkedHashMap<>();
+            for (Map.Entry<String, EndpointMetrics> entry : getMetrics().entrySet()) {
+                snapshot.put(entry.getKey(), entry.getValue().getSnapshot());
+            }
+            return snapshot;
+        }
+
+        /**
+         * Binds request parameters in a single pass over the request body.
+         * Each named field is decoded straight into its parameter type, unknown fields are skipped
+         * and missing parameters are {@code null}.
+         */
+        @NotNull
+        protected Object[] readParameters(
+            @NotNull MethodPlan plan,
+            @NotNull RpcCodec codec,
+            @NotNull InputStream requestBody
+        ) throws IOException {
+            final Object[] values = new Object[plan.parameterNames.length];
+            final Gson codecGson = codecGsons.get(codec);
+
+            try (JsonReader reader = codec.createReader(codecGson != null ? codecGson : gson, requestBody)) {
+                final JsonToken token;
+                try {
+                    token = reader.peek();
+                } catch (EOFException e) {
+                    // Empty request body
+                    return values;
+                }
+                if (token == JsonToken.NULL) {
+                    reader.nextNull();
+                    return values;
+                }
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    final int index = plan.getParameterIndex(reader.nextName());
+                    if (index < 0) {
+                        reader.skipValue();
+                    } else {
+                        values[index] = plan.getParameterAdapter(index, codecGson).read(reader);
+                    }
                 }
-                log.log(Level.SEVERE, "RPC call '" + uri + "' failed: " + e.getMessage());
-                return createResponseError(e);
+                reader.endObject();
+            }
+            return values;
+        }
+
+        @Nullable
+        Object invokeLocal(
+            @NotNull RpcMethodDescriptor descriptor,
+            @NotNull Object[] args,
+            @NotNull Type returnType,
+            @NotNull Gson clientGson,
+            @NotNull LocalCallMode mode
+        ) throws RpcException {
+            final MethodPlan plan = mappings.get(trimLeadingSlashes(descriptor.getEndpoint().getPath()));
+            if (plan == null || plan.streamResult || plan.eventResult || !filter.test(LOCAL_ADDRESS)) {
+                // Streams and events are read lazily from the response, errors are reported by the server
+                return LocalCalls.NOT_HANDLED;
+            }
+            // Parameters are bound by name, as if they were sent in a request
+            final List<String> argNames = descriptor.getParameterNames();
+            final Object[] values = new Object[plan.parameterNames.length];
+            for (int i = 0; i < argNames.size(); i++) {
+                final int index = plan.getParameterIndex(argNames.get(i));
+                if (index >= 0 && args[i] != null) {
+                    values[index] = LocalCalls.copy(args[i], args[i].getClass(), plan.parameterTypes[index], clientGson, gson, mode);
+                }
+            }
+
+            final Object result;
+            try {
+                result = plan.invoker.invokeExact(values);
+            } catch (Throwable e) {
+                throw createLocalError(e);
+            }
+            if (plan.asyncResult) {
+                final CompletableFuture<Object> future = result == null
+                    ? CompletableFuture.completedFuture(null)
+                    : ((CompletionStage<?>) result).toCompletableFuture().handle((value, error) -> {
+                        if (error != null) {
+                            throw createLocalError(error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+                        }
+                        return LocalCalls.copy(value, plan.resultType, returnType, gson, clientGson, mode);
+                    });
+                return descriptor.isAsyncResult() ? future : RpcInvocationHandler.waitForResult(future);
+            }
+            final Object value = plan.resultType == void.class
+                ? null
+                : LocalCalls.copy(result, plan.resultType, returnType, gson, clientGson, mode);
+            return descriptor.isAsyncResult() ? CompletableFuture.completedFuture(value) : value;
+        }
+
+        /**
+         * Creates exception of the same shape as the one of a failed HTTP call: the server error message
+         * and its stack trace followed by the client one.
+         */
+        @NotNull
+        private static RpcException createLocalError(@NotNull Throwable e) {
+            log.log(Level.SEVERE, "Local RPC call failed: " + e.getMessage());
+            final StringWriter buf = new StringWriter();
+            e.printStackTrace(new PrintWriter(buf, true));
+            return HttpTransportInvocationHandler.createRemoteError(buf.toString());
+        }
+
+        @NotNull
+        private static String trimLeadingSlashes(@NotNull String path) {
+            int start = 0;
+            while (start < path.length() && path.charAt(start) == '/') {
+                start++;
             }
+            return path.substring(start);
+        }
+
+        /**
+         * Compiles invocation plans for the mapped methods,
+         * so that requests are dispatched without reflection.
+         */
+        @NotNull
+        protected Map<String, MethodPlan> createMethodPlans(@NotNull Map<String, Method> methods) {
+            final Map<String, MethodPlan> plans = new HashMap<>(methods.size());
+            for (Map.Entry<String, Method> entry : methods.entrySet()) {
+                plans.put(entry.getKey(), new MethodPlan(entry.getKey(), entry.getValue(), object, gson));
+            }
+            return Collections.unmodifiableMap(plans);
         }
 
         @NotNull
@@ -270,15 +1217,158 @@ public class RestServer<T> {
     }
 
     @NotNull
-    private static Response<String> createResponseError(Throwable e) {
+    private static Response<String> createResponseError(Throwable e, @NotNull MethodPlan plan) {
         StringWriter buf = new StringWriter();
         e.printStackTrace(new PrintWriter(buf, true));
-        return new Response<>(buf.toString(), String.class, RpcConstants.SC_SERVER_ERROR);
+        return new Response<>(buf.toString(), String.class, plan, RpcConstants.SC_SERVER_ERROR);
     }
 
     @NotNull
-    private static Response<Object> createResponseContent(Object result, Type type) {
-        return new Response<>(result, type, RpcConstants.SC_OK);
+    private static Response<Object> createResponseContent(Object result, @NotNull MethodPlan plan) {
+        return new Response<>(result, plan.resultType, plan, RpcConstants.SC_OK);
+    }
+
+    /**
+     * Invocation plan of a mapped method.
+     * Everything needed to bind parameters, invoke the method and serialize its result is resolved once.
+     */
+    protected static final class MethodPlan {
+        private final String endpoint;
+        private final Method method;
+        private final MethodHandle invoker;
+        private final String[] parameterNames;
+        private final Type[] parameterTypes;
+        private final TypeAdapter<?>[] parameterAdapters;
+        private final Type resultType;
+        private final TypeAdapter<Object> resultAdapter;
+        // Type of values written by the result adapter: the result, its elements or its events
+        private final TypeToken<?> resultValueType;
+        private final boolean asyncResult;
+        private final boolean streamResult;
+        private final boolean eventResult;
+        private final boolean coalescible;
+        private final boolean priority;
+        private final EndpointMetrics metrics;
+
+        @SuppressWarnings("unchecked")
+        MethodPlan(@NotNull String endpoint, @NotNull Method method, @NotNull Object object, @NotNull Gson gson) {
+            this.endpoint = endpoint;
+            this.method = method;
+            this.metrics = new EndpointMetrics(endpoint);
+
+            final Parameter[] parameters = method.getParameters();
+            this.parameterNames = new String[parameters.length];
+            this.parameterTypes = new Type[parameters.length];
+            this.parameterAdapters = new TypeAdapter<?>[parameters.length];
+            for (int i = 0; i < parameters.length; i++) {
+                final Parameter p = parameters[i];
+                final RequestParameter param = p.getDeclaredAnnotation(RequestParameter.class);
+                parameterNames[i] = param == null ? p.getName() : param.value();
+                parameterTypes[i] = p.getParameterizedType();
+                parameterAdapters[i] = gson.getAdapter(TypeToken.get(parameterTypes[i]));
+            }
+
+            Type type = method.getGenericReturnType();
+            this.asyncResult = CompletionStage.class.isAssignableFrom(method.getReturnType());
+            if (asyncResult) {
+                type = type instanceof ParameterizedType pt ? pt.getActualTypeArguments()[0] : Object.class;
+            }
+            this.resultType = type;
+            final Class<?> rawType = TypeToken.get(type).getRawType();
+            this.streamResult = Iterator.class.isAssignableFrom(rawType) || BaseStream.class.isAssignableFrom(rawType);
+            this.eventResult = Flow.Publisher.class.isAssignableFrom(rawType);
+            if (eventResult) {
+                // Items are sent as server-sent events
+                final Type itemType = type instanceof ParameterizedType pt && (rawType == Flow.Publisher.class || rawType == SubmissionPublisher.class)
+                    ? pt.getActualTypeArguments()[0]
+                    : Object.class;
+                this.resultValueType = TypeToken.get(itemType);
+            } else if (streamResult) {
+                // Elements are serialized one by one into a JSON array
+                final Type elementType = type instanceof ParameterizedType pt && (rawType == Iterator.class || rawType == Stream.class)
+                    ? pt.getActualTypeArguments()[0]
+                    : Object.class;
+                this.resultValueType = TypeToken.get(elementType);
+            } else {
+                this.resultValueType = type == void.class ? null : TypeToken.get(type);
+            }
+            this.resultAdapter = resultValueType == null ? null : (TypeAdapter<Object>) gson.getAdapter(resultValueType);
+            // Results read lazily can't be shared
+            this.coalescible = method.isAnnotationPresent(Idempotent.class) && !streamResult && !eventResult && resultAdapter != null;
+            this.priority = method.isAnnotationPresent(HighPriority.class);
+
+            try {
+                this.invoker = MethodHandles.lookup().unreflect(method)
+                    .bindTo(object)
+                    .asSpreader(Object[].class, parameters.length)
+                    .asType(MethodType.methodType(Object.class, Object[].class));
+            } catch (IllegalAccessException e) {
+                throw new IllegalArgumentException("Method " + method + " is not accessible", e);
+            }
+        }
+
+        @NotNull
+        public String getEndpoint() {
+            return endpoint;
+        }
+
+        /**
+         * Returns adapter of the parameter, for the given codec Gson or the server one if it is {@code null}.
+         */
+        @NotNull
+        TypeAdapter<?> getParameterAdapter(int index, @Nullable Gson codecGson) {
+            return codecGson == null ? parameterAdapters[index] : codecGson.getAdapter(TypeToken.get(parameterTypes[index]));
+        }
+
+        /**
+         * Returns adapter of the result values, for the given codec Gson or the server one if it is {@code null}.
+         */
+        @SuppressWarnings("unchecked")
+        TypeAdapter<Object> getResultAdapter(@Nullable Gson codecGson) {
+            return codecGson == null || resultValueType == null
+                ? resultAdapter
+                : (TypeAdapter<Object>) codecGson.getAdapter(resultValueType);
+        }
+
+        /**
+         * Returns index of the parameter with the given name or -1 if there is no such parameter.
+         */
+        public int getParameterIndex(@NotNull String name) {
+            for (int i = 0; i < parameterNames.length; i++) {
+                if (parameterNames[i].equals(name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @NotNull
+        public Method getMethod() {
+            return method;
+        }
+
+        /**
+         * Names of the method parameters, unmodifiable.
+         */
+        @NotNull
+        public List<String> getParameterNames() {
+            return List.of(parameterNames);
+        }
+
+        @NotNull
+        public EndpointMetrics getMetrics() {
+            return metrics;
+        }
+
+        @NotNull
+        public Type[] getParameterTypes() {
+            return parameterTypes;
+        }
+
+        @NotNull
+        public Type getResultType() {
+            return resultType;
+        }
     }
 
     public static final class Builder<T> {
@@ -290,6 +1380,22 @@ public class RestServer<T> {
         private int port;
         private int backlog;
         private Predicate<InetSocketAddress> filter = DEFAULT_PREDICATE;
+        private Executor executor;
+        private int maxThreads = DEFAULT_MAX_THREADS;
+        private int maxQueueSize;
+        private boolean virtualThreads;
+        private boolean chunkedResponses;
+        private int compressionThreshold = HttpCompression.DEFAULT_THRESHOLD;
+        private final List<RpcCodec> codecs = new ArrayList<>();
+        private Path unixSocketPath;
+        private LocalCallMode localCallMode;
+        private boolean metricsMapping;
+        private boolean interruptOnCancel;
+        private boolean requestCoalescing;
+        private RpcConcurrencyLimit concurrencyLimit;
+        private HttpServerProvider serverProvider;
+        private int eventHeartbeat = DEFAULT_EVENT_HEARTBEAT;
+        private int maxEventSubscriptions;
 
         private Builder(@NotNull T object, @NotNull Class<T> cls) {
             this.object = object;
@@ -323,25 +1429,446 @@ public class RestServer<T> {
             return this;
         }
 
+        /**
+         * Sets executor for request processing. The executor is not shut down when the server stops.
+         */
+        @NotNull
+        public Builder<T> setExecutor(@Nullable Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        /**
+         * Sets HTTP server engine implementing the {@code com.sun.net.httpserver} SPI.
+         * By default, the JDK built-in server is used. Not used for unix domain sockets.
+         * Bundle {@code org.jkiss.utils.rest.jetty} provides a non-blocking Jetty engine supporting HTTP/2.
+         * <p>
+         * An external engine processes requests in its own threads: the thread settings of this builder do not apply,
+         * and an {@link #setExecutor executor} replaces the engine thread pool, if the engine supports it.
+         * {@link HighPriority} requests are not limited, but share the engine threads with other requests.
+         */
+        @NotNull
+        public Builder<T> setServerProvider(@Nullable HttpServerProvider serverProvider) {
+            this.serverProvider = serverProvider;
+            return this;
+        }
+
+        /**
+         * Sets maximum number of threads processing requests concurrently.
+         */
+        @NotNull
+        public Builder<T> setMaxThreads(int maxThreads) {
+            this.maxThreads = maxThreads;
+            return this;
+        }
+
+        /**
+         * Sets maximum number of requests waiting for a processing thread.
+         * Requests exceeding this limit are rejected with {@link RpcConstants#SC_UNAVAILABLE}.
+         * Zero (default) means unbounded queue.
+         */
+        @NotNull
+        public Builder<T> setMaxQueueSize(int maxQueueSize) {
+            this.maxQueueSize = maxQueueSize;
+            return this;
+        }
+
+        /**
+         * Processes each request in its own virtual thread (Java 21+).
+         * On older Java versions a cached thread pool is used instead.
+         */
+        @NotNull
+        public Builder<T> setVirtualThreads(boolean virtualThreads) {
+            this.virtualThreads = virtualThreads;
+            return this;
+        }
+
+        /**
+         * Sends results using chunked transfer encoding.
+         * Results are serialized straight into the response body, without buffering the whole response.
+         */
+        @NotNull
+        public Builder<T> setChunkedResponses(boolean chunkedResponses) {
+            this.chunkedResponses = chunkedResponses;
+            return this;
+        }
+
+        /**
+         * Sets minimal size of response which is compressed if the client accepts gzip or deflate encoding.
+         * Zero compresses all responses, negative value disables compression.
+         * Compressed requests are accepted regardless of this setting.
+         */
+        @NotNull
+        public Builder<T> setCompressionThreshold(int compressionThreshold) {
+            this.compressionThreshold = compressionThreshold;
+            return this;
+        }
+
+        /**
+         * Adds payload codec. Requests are decoded by the codec matching their {@code Content-Type},
+         * responses are encoded by the codec the client accepts. JSON is always supported.
+         */
+        @NotNull
+        public Builder<T> addCodec(@NotNull RpcCodec codec) {
+            this.codecs.add(codec);
+            return this;
+        }
+
+        /**
+         * Listens on a unix domain socket instead of a TCP port. Clients connect using {@link UnixSocketTransport}.
+         * The socket file is accessible by the current user only and replaces the address filter:
+         * the filter sees all clients as connected from the loopback address.
+         * Responses of unknown length, e.g. chunked or compressed ones, close the connection after the body.
+         */
+        @NotNull
+        public Builder<T> setUnixSocket(@Nullable Path unixSocketPath) {
+            this.unixSocketPath = unixSocketPath;
+            return this;
+        }
+
+        /**
+         * Lets clients of this process call the server directly, bypassing serialization and HTTP.
+         * Only clients which enable {@link RestClient.Builder#setLocalCalls} and connect to the server port or socket
+         * use direct calls. {@code null} (default) disables direct calls.
+         */
+        @NotNull
+        public Builder<T> setLocalCallMode(@Nullable LocalCallMode localCallMode) {
+            this.localCallMode = localCallMode;
+            return this;
+        }
+
+        /**
+         * Serves snapshot of {@link RestServer#getMetrics() endpoint metrics} as JSON at {@value #METRICS_MAPPING}.
+         * The mapping is subject to the {@link #setFilter filter}. Disabled by default.
+         */
+        @NotNull
+        public Builder<T> setMetricsMapping(boolean metricsMapping) {
+            this.metricsMapping = metricsMapping;
+            return this;
+        }
+
+        /**
+         * Limits number of requests processed or queued at once, requests over the limit are rejected with {@code 503}.
+         * {@link HighPriority} requests and event subscriptions are not limited. No limit by default.
+         */
+        @NotNull
+        public Builder<T> setConcurrencyLimit(@Nullable RpcConcurrencyLimit concurrencyLimit) {
+            this.concurrencyLimit = concurrencyLimit;
+            return this;
+        }
+
+        /**
+         * Sets interval (in seconds) of heartbeat comments sent to event subscribers, see {@link Flow.Publisher} results.
+         * Heartbeats keep idle connections open and detect clients which have gone. Zero disables heartbeats.
+         * Default is 15 seconds.
+         */
+        @NotNull
+        public Builder<T> setEventHeartbeat(int eventHeartbeat) {
+            this.eventHeartbeat = eventHeartbeat;
+            return this;
+        }
+
+        /**
+         * Limits number of open event subscriptions, see {@link Flow.Publisher} results. Each subscription holds
+         * a worker thread until its stream ends, so subscriptions over the limit are rejected with {@code 503}.
+         * They are not counted by the {@link #setConcurrencyLimit concurrency limit}.
+         * Default is half of {@link #setMaxThreads max threads}.
+         */
+        @NotNull
+        public Builder<T> setMaxEventSubscriptions(int maxEventSubscriptions) {
+            this.maxEventSubscriptions = maxEventSubscriptions;
+            return this;
+        }
+
+        /**
+         * Coalesces concurrent requests of {@link Idempotent} methods: requests with the same body share one invocation
+         * and its serialized result. Disabled by default.
+         */
+        @NotNull
+        public Builder<T> setRequestCoalescing(boolean requestCoalescing) {
+            this.requestCoalescing = requestCoalescing;
+            return this;
+        }
+
+        /**
+         * Interrupts thread executing a call once the call deadline passes, see {@link RpcContext}.
+         * Disabled by default: interrupts close interruptible channels the method may use.
+         * Calls are cancelled in any case, methods may check {@link RpcContext#isCancelled()}.
+         */
+        @NotNull
+        public Builder<T> setInterruptOnCancel(boolean interruptOnCancel) {
+            this.interruptOnCancel = interruptOnCancel;
+            return this;
+        }
+
         @NotNull
         public RestServer<T> create() {
             try {
-                return new RestServer<>(cls, object, gson, filter, port, backlog);
+                return new RestServer<>(this);
             } catch (IOException e) {
                 throw new UncheckedIOException(e);
             }
         }
     }
 
+    /**
+     * Identity of a coalesced request: method, codecs and request body.
+     */
+    private static final class FlightKey {
+        private final MethodPlan plan;
+        private final RpcCodec requestCodec;
+        private final RpcCodec responseCodec;
+        private final byte[] body;
+        private final int hash;
+
+        FlightKey(@NotNull MethodPlan plan, @NotNull RpcCodec requestCodec, @NotNull RpcCodec responseCodec, @NotNull byte[] body) {
+            this.plan = plan;
+            this.requestCodec = requestCodec;
+            this.responseCodec = responseCodec;
+            this.body = body;
+            this.hash = 31 * (31 * plan.hashCode() + responseCodec.hashCode()) + Arrays.hashCode(body);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof FlightKey key
+                && hash == key.hash
+                && plan == key.plan
+                && requestCodec == key.requestCodec
+                && responseCodec == key.responseCodec
+                && Arrays.equals(body, key.body);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class DeadlineTimer {
+        static final ScheduledThreadPoolExecutor INSTANCE = new ScheduledThreadPoolExecutor(1, runnable -> {
+            final Thread thread = new Thread(runnable, "RPC deadline timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        static {
+            // Timers of calls completed in time are cancelled, do not keep them till they expire
+            INSTANCE.setRemoveOnCancelPolicy(true);
+        }
+    }
+
+    /**
+     * Writes published items to the response as server-sent events.
+     */
+    private static final class EventStreamSubscriber implements Flow.Subscriber<Object> {
+        private static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.US_ASCII);
+
+        private final OutputStream out;
+        private final MethodPlan plan;
+        private final Gson gson;
+        private final CompletableFuture<Boolean> completion = new CompletableFuture<>();
+        private volatile Flow.Subscription subscription;
+        private volatile long lastWriteTime = System.nanoTime();
+
+        EventStreamSubscriber(@NotNull OutputStream out, @NotNull MethodPlan plan, @NotNull Gson gson) {
+            this.out = out;
+            this.plan = plan;
+            this.gson = gson;
+        }
+
+        @Override
+        public void onSubscribe(@NotNull Flow.Subscription subscription) {
+            if (this.subscription != null) {
+                subscription.cancel();
+                return;
+            }
+            this.subscription = subscription;
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(Object item) {
+            final String data;
+            try {
+                data = plan.resultAdapter.toJson(item);
+            } catch (RuntimeException e) {
+                subscription.cancel();
+                onError(e);
+                return;
+            }
+            if (write("data: " + data + "\n\n")) {
+                subscription.request(1);
+            }
+        }
+
+        @Override
+        public void onError(@NotNull Throwable error) {
+            log.log(Level.SEVERE, "RPC event stream '" + plan.endpoint + "' failed: " + error.getMessage());
+            write("event: error\ndata: " + gson.toJson(error.toString()) + "\n\n");
+            completion.complete(false);
+        }
+
+        @Override
+        public void onComplete() {
+            completion.complete(true);
+        }
+
+        /**
+         * Waits until the stream ends, sending heartbeats when no events were sent for the heartbeat interval.
+         * Heartbeats are written by the waiting thread, so a stuck client blocks only its own stream.
+         * Cancels the subscription if the waiting thread is interrupted.
+         *
+         * @param heartbeat heartbeat interval in seconds, zero disables heartbeats
+         */
+        boolean await(int heartbeat) {
+            try {
+                final long interval = TimeUnit.SECONDS.toNanos(heartbeat);
+                while (interval > 0 && !completion.isDone()) {
+                    final long idle = System.nanoTime() - lastWriteTime;
+                    if (idle >= interval) {
+                        write(HEARTBEAT);
+                        continue;
+                    }
+                    try {
+                        return completion.get(interval - idle, TimeUnit.NANOSECONDS);
+                    } catch (TimeoutException ignored) {
+                        // Time to send a heartbeat
+                    }
+                }
+                return completion.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancel();
+                return false;
+            } catch (ExecutionException e) {
+                return false;
+            }
+        }
+
+        private boolean write(@NotNull String event) {
+            final byte[] bytes = event.getBytes(StandardCharsets.UTF_8);
+            plan.metrics.addBytesOut(bytes.length);
+            return write(bytes);
+        }
+
+        private synchronized boolean write(@NotNull byte[] bytes) {
+            if (completion.isDone()) {
+                // Items published after cancellation
+                return false;
+            }
+            try {
+                out.write(bytes);
+                out.flush();
+                lastWriteTime = System.nanoTime();
+                return true;
+            } catch (IOException e) {
+                // The client has gone
+                log.log(Level.FINE, "RPC event stream '" + plan.endpoint + "' closed: " + e.getMessage());
+                cancel();
+                return false;
+            }
+        }
+
+        private void cancel() {
+            final Flow.Subscription subscription = this.subscription;
+            if (subscription != null) {
+                subscription.cancel();
+            }
+            completion.complete(false);
+        }
+    }
+
+    /**
+     * Response body which is compressed once it grows over the threshold.
+     * Headers are sent lazily: small responses are sent as is with known length,
+     * larger ones are compressed on the fly using chunked transfer encoding.
+     */
+    private static final class CompressingResponseStream extends OutputStream {
+        private final HttpExchange exchange;
+        private final String encoding;
+        private final int threshold;
+        private final FastByteArrayOutputStream head;
+        private OutputStream out;
+
+        CompressingResponseStream(@NotNull HttpExchange exchange, @NotNull String encoding, int threshold) {
+            this.exchange = exchange;
+            this.encoding = encoding;
+            this.threshold = threshold;
+            this.head = new FastByteArrayOutputStream(Math.min(threshold, IOUtils.DEFAULT_BUFFER_SIZE));
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(@NotNull byte[] b, int off, int len) throws IOException {
+            if (out == null) {
+                if (head.size() + len < threshold) {
+                    head.write(b, off, len);
+                    return;
+                }
+                startCompression();
+            }
+            out.write(b, off, len);
+        }
+
+        private void startCompression() throws IOException {
+            exchange.getResponseHeaders().set(HttpCompression.HEADER_CONTENT_ENCODING, encoding);
+            exchange.sendResponseHeaders(RpcConstants.SC_OK, 0);
+            out = HttpCompression.compress(exchange.getResponseBody(), encoding);
+            out.write(head.getInternalBuffer(), 0, head.size());
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (out != null) {
+                out.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (out != null) {
+                out.close();
+                return;
+            }
+            // The whole response is below the threshold
+            exchange.sendResponseHeaders(RpcConstants.SC_OK, head.size() == 0 ? -1 : head.size());
+            try (OutputStream responseBody = exchange.getResponseBody()) {
+                responseBody.write(head.getInternalBuffer(), 0, head.size());
+            }
+        }
+    }
+
     private static class Response<T> {
         private final T object;
         private final Type type;
+        private final MethodPlan plan;
         private final int code;
+        // Serialized result shared by coalesced requests
+        private final FastByteArrayOutputStream content;
 
         public Response(@Nullable T object, @NotNull Type type, int code) {
+            this(object, type, null, code);
+        }
+
+        public Response(@Nullable T object, @NotNull Type type, @Nullable MethodPlan plan, int code) {
             this.object = object;
             this.type = type;
+            this.plan = plan;
             this.code = code;
+            this.content = null;
+        }
+
+        public Response(@NotNull FastByteArrayOutputStream content, @Nullable MethodPlan plan) {
+            this.object = null;
+            this.type = Object.class;
+            this.plan = plan;
+            this.code = RpcConstants.SC_OK;
+            this.content = content;
         }
     }
 }
@@ -0,0 +1,142 @@
+/*
+ * DBeaver - Universal Database Manager
+ * Copyright (C) 2010-2024 DBeaver Corp and others
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jkiss.utils.rest;
+
+import org.jkiss.code.NotNull;
+import org.jkiss.code.Nullable;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Client call observed by {@link RpcCallListener}s. Durations are in nanoseconds, sizes are payload sizes before compression.
+ * <p>
+ * Results read lazily ({@link java.util.Iterator}, {@link java.util.stream.Stream}) are completed once the response is available,
+ * their elements are not accounted.
+ */
+public final class RpcCall {
+
+    @NotNull
+    private final RpcMethodDescriptor descriptor;
+    private final long startTime = System.nanoTime();
+    private long serializationTime;
+    private long networkTime;
+    private long deserializationTime;
+    private long totalTime;
+    private long requestSize;
+    private long responseSize;
+    private int attempts = 1;
+    private Throwable error;
+    private Map<String, Object> attributes;
+    final Map<String, String> requestHeaders = new LinkedHashMap<>();
+
+    RpcCall(@NotNull RpcMethodDescriptor descriptor) {
+        this.descriptor = descriptor;
+    }
+
+    @NotNull
+    public RpcMethodDescriptor getDescriptor() {
+        return descriptor;
+    }
+
+    public long getSerializationTime() {
+        return serializationTime;
+    }
+
+    /**
+     * Time between the request is serialized and the response is received, including server processing.
+     */
+    public long getNetworkTime() {
+        return networkTime;
+    }
+
+    public long getDeserializationTime() {
+        return deserializationTime;
+    }
+
+    public long getTotalTime() {
+        return totalTime;
+    }
+
+    public long getRequestSize() {
+        return requestSize;
+    }
+
+    public long getResponseSize() {
+        return responseSize;
+    }
+
+    /**
+     * Number of requests sent for the call, more than one if it was retried or hedged.
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    @Nullable
+    public Throwable getError() {
+        return error;
+    }
+
+    public boolean isSuccessful() {
+        return error == null;
+    }
+
+    /**
+     * Returns attribute stored by a listener, e.g. trace span started in {@link RpcCallListener#onRequest}.
+     */
+    @Nullable
+    public synchronized Object getAttribute(@NotNull String name) {
+        return attributes == null ? null : attributes.get(name);
+    }
+
+    public synchronized void setAttribute(@NotNull String name, @Nullable Object value) {
+        if (attributes == null) {
+            attributes = new HashMap<>();
+        }
+        attributes.put(name, value);
+    }
+
+    void requestSerialized(long size) {
+        serializationTime = System.nanoTime() - startTime;
+        requestSize = size;
+    }
+
+    void responseReceived() {
+        networkTime = System.nanoTime() - startTime - serializationTime;
+    }
+
+    void responseRead(long size) {
+        deserializationTime = System.nanoTime() - startTime - serializationTime - networkTime;
+        responseSize = size;
+    }
+
+    void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    void completed(@Nullable Throwable error) {
+        this.totalTime = System.nanoTime() - startTime;
+        this.error = error;
+    }
+
+    @Override
+    public String toString() {
+        return descriptor.getMethod().getName() + (error == null ? "" : " failed") + " in " + totalTime / 1000 + "us";
+    }
+}
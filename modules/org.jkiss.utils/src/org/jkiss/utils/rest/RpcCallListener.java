@@ -0,0 +1,41 @@
+/*
+ * DBeaver - Universal Database Manager
+ * Copyright (C) 2010-2024 DBeaver Corp and others
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jkiss.utils.rest;
+
+import org.jkiss.code.NotNull;
+
+import java.util.Map;
+
+/**
+ * Listener of client calls, see {@link RestClient.Builder#addCallListener}.
+ * Listeners are called by the calling thread or by the thread completing the call, so they must be fast and thread-safe.
+ */
+public interface RpcCallListener {
+
+    /**
+     * Called right before the request is sent. Headers added here are sent with the request by HTTP transports,
+     * e.g. to propagate trace context.
+     */
+    default void onRequest(@NotNull RpcCall call, @NotNull Map<String, String> headers) {
+    }
+
+    /**
+     * Called once the call is completed, successfully or not.
+     */
+    default void onComplete(@NotNull RpcCall call) {
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * DBeaver - Universal Database Manager
+ * Copyright (C) 2010-2024 DBeaver Corp and others
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jkiss.utils.rest;
+
+import org.jkiss.code.NotNull;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Call listener aggregating timings, sizes and failures per remote method.
+ */
+public class RpcCallStatistics implements RpcCallListener {
+
+    private final Map<String, MethodStatistics> methods = new ConcurrentHashMap<>();
+
+    @Override
+    public void onComplete(@NotNull RpcCall call) {
+        final String name = call.getDescriptor().getEndpoint().toString();
+        MethodStatistics statistics = methods.get(name);
+        if (statistics == null) {
+            statistics = methods.computeIfAbsent(name, MethodStatistics::new);
+        }
+        statistics.record(call);
+    }
+
+    /**
+     * Returns statistics of called methods, by method endpoint.
+     */
+    @NotNull
+    public Map<String, MethodStatistics> getMethods() {
+        return Collections.unmodifiableMap(new TreeMap<>(methods));
+    }
+
+    public void reset() {
+        methods.clear();
+    }
+
+    /**
+     * Returns human-readable summary, one line per method.
+     */
+    @NotNull
+    public String getSummary() {
+        final StringBuilder summary = new StringBuilder();
+        for (MethodStatistics statistics : getMethods().values()) {
+            final MethodSnapshot snapshot = statistics.getSnapshot();
+            summary.append(statistics.getEndpoint())
+                .append(": calls=").append(snapshot.calls())
+                .append(", failures=").append(snapshot.failures())
+                .append(", total ").append(formatHistogram(snapshot.total()))
+                .append(", serialize ").append(formatHistogram(snapshot.serialization()))
+                .append(", network ").append(formatHistogram(snapshot.network()))
+                .append(", deserialize ").append(formatHistogram(snapshot.deserialization()))
+                .append(", bytes out/in=").append(snapshot.bytesOut()).append('/').append(snapshot.bytesIn())
+                .append('\n');
+        }
+        return summary.toString();
+    }
+
+    @Override
+    public String toString() {
+        return getSummary();
+    }
+
+    @NotNull
+    private static String formatHistogram(@NotNull LatencyHistogram.Snapshot snapshot) {
+        return String.format("p50/p90/p99=%.0f/%.0f/%.0fus", snapshot.p50(), snapshot.p90(), snapshot.p99());
+    }
+
+    public static final class MethodStatistics {
+        @NotNull
+        private final String endpoint;
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder bytesOut = new LongAdder();
+        private final LongAdder bytesIn = new LongAdder();
+        private final LatencyHistogram total = new LatencyHistogram();
+        private final LatencyHistogram serialization = new LatencyHistogram();
+        private final LatencyHistogram network = new LatencyHistogram();
+        private final LatencyHistogram deserialization = new LatencyHistogram();
+
+        MethodStatistics(@NotNull String endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        void record(@NotNull RpcCall call) {
+            calls.increment();
+            if (!call.isSuccessful()) {
+                failures.increment();
+            }
+            bytesOut.add(call.getRequestSize());
+            bytesIn.add(call.getResponseSize());
+            total.record(call.getTotalTime());
+            serialization.record(call.getSerializationTime());
+            if (call.isSuccessful()) {
+                // Failed calls stop at different phases
+                network.record(call.getNetworkTime());
+                deserialization.record(call.getDeserializationTime());
+            }
+        }
+
+        @NotNull
+        public String getEndpoint() {
+            return endpoint;
+        }
+
+        @NotNull
+        public LatencyHistogram getTotalTime() {
+            return total;
+        }
+
+        @NotNull
+        public LatencyHistogram getSerializationTime() {
+            return serialization;
+        }
+
+        @NotNull
+        public LatencyHistogram getNetworkTime() {
+            return network;
+        }
+
+        @NotNull
+        public LatencyHistogram getDeserializationTime() {
+            return deserialization;
+        }
+
+        @NotNull
+        public MethodSnapshot getSnapshot() {
+            return new MethodSnapshot(
+                calls.sum(),
+                failures.sum(),
+                bytesOut.sum(),
+                bytesIn.sum(),
+                total.getSnapshot(),
+                serialization.getSnapshot(),
+                network.getSnapshot(),
+                deserialization.getSnapshot());
+        }
+    }
+
+    /**
+     * Point-in-time view of method statistics. Durations are in microseconds.
+     */
+    public record MethodSnapshot(
+        long calls,
+        long failures,
+        long bytesOut,
+        long bytesIn,
+        @NotNull LatencyHistogram.Snapshot total,
+        @NotNull LatencyHistogram.Snapshot serialization,
+        @NotNull LatencyHistogram.Snapshot network,
+        @NotNull LatencyHistogram.Snapshot deserialization
+    ) {
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * DBeaver - Universal Database Manager
+ * Copyright (C) 2010-2024 DBeaver Corp and others
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jkiss.utils.rest;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import org.jkiss.code.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Payload codec. Request and response bodies are encoded by the codec matching their {@code Content-Type}.
+ * <p>
+ * Values are (de)serialized by Gson type adapters, so codecs provide streaming writers and readers
+ * which Gson adapters work with.
+ */
+public interface RpcCodec {
+
+    /**
+     * MIME type of the encoded content, without parameters.
+     */
+    @NotNull
+    String getContentType();
+
+    /**
+     * Creates writer encoding values to the stream. Flushing the writer flushes the stream.
+     */
+    @NotNull
+    JsonWriter createWriter(@NotNull Gson gson, @NotNull OutputStream out) throws IOException;
+
+    /**
+     * Creates reader decoding values from the stream. Closing the reader closes the stream.
+     */
+    @NotNull
+    JsonReader createReader(@NotNull Gson gson, @NotNull InputStream in) throws IOException;
+
+    /**
+     * Returns Gson to (de)serialize values in this format, e.g. with adapters writing native types of the format.
+     * Called once per client or server, returns the given Gson by default.
+     */
+    @NotNull
+    default Gson configureGson(@NotNull Gson gson) {
+        return gson;
+    }
+
+}
@@ -0,0 +1,121 @@
+/*
+ * DBeaver - Universal Database Manager
+ * Copyright (C) 2010-2024 DBeaver Corp and others
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jkiss.utils.rest;
+
+import org.jkiss.code.NotNull;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limit of requests a {@link RestServer} processes or queues at once, see {@link RestServer.Builder#setConcurrencyLimit}.
+ * Requests over the limit are rejected right away with {@code 503} and {@code Retry-After}.
+ * <p>
+ * Adaptive limit follows AIMD: it grows by one for every "limit" requests completed within the latency threshold
+ * while the server is busy, and is cut by 10% when requests take longer, at most once per threshold period.
+ */
+public final class RpcConcurrencyLimit {
+
+    private static final double BACKOFF_RATIO = 0.9;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final long latencyThreshold;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    // Modified under lock
+    private volatile double limit;
+    private long lastDecreaseTime;
+
+    private RpcConcurrencyLimit(int initialLimit, int minLimit, int maxLimit, long latencyThreshold) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.latencyThreshold = latencyThreshold;
+        this.limit = Math.min(Math.max(initialLimit, this.minLimit), this.maxLimit);
+    }
+
+    /**
+     * Creates constant limit.
+     */
+    @NotNull
+    public static RpcConcurrencyLimit fixed(int limit) {
+        return new RpcConcurrencyLimit(limit, limit, limit, 0);
+    }
+
+    /**
+     * Creates limit adapting to the request latency.
+     *
+     * @param latencyThreshold request latency (in milliseconds, including queue time) considered as overload
+     */
+    @NotNull
+    public static RpcConcurrencyLimit adaptive(int initialLimit, int minLimit, int maxLimit, long latencyThreshold) {
+        return new RpcConcurrencyLimit(initialLimit, minLimit, maxLimit, TimeUnit.MILLISECONDS.toNanos(latencyThreshold));
+    }
+
+    public int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * Number of requests admitted and not completed yet.
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    boolean tryAcquire() {
+        while (true) {
+            final int current = inFlight.get();
+            if (current >= (int) limit) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Completes admitted request.
+     *
+     * @param latency time since the request was received, in nanoseconds, or negative if it was not processed
+     */
+    void release(long latency) {
+        final int current = inFlight.getAndDecrement();
+        if (latencyThreshold > 0 && latency >= 0) {
+            adjust(latency, current);
+        }
+    }
+
+    private synchronized void adjust(long latency, int inFlight) {
+        if (latency > latencyThreshold) {
+            final long now = System.nanoTime();
+            if (lastDecreaseTime == 0 || now - lastDecreaseTime >= latencyThreshold) {
+                // Requests completed within the same period suffer from the same overload
+                lastDecreaseTime = now;
+                limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+            }
+        } else if (inFlight * 2 >= limit) {
+            // Grow only while the limit is actually used
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "limit=" + getLimit() + ", inFlight=" + getInFlight();
+    }
+}
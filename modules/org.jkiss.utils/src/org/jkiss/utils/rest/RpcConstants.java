@@ -23,10 +23,29 @@ import com.google.gson.ToNumberPolicy;
 
 public class RpcConstants {
     public static final int SC_OK = 200;
+    public static final int SC_BAD_REQUEST = 400;
     public static final int SC_FORBIDDEN = 403;
     public static final int SC_UNSUPPORTED = 405;
     public static final int SC_NOT_FOUND = 404;
+    public static final int SC_UNSUPPORTED_MEDIA_TYPE = 415;
     public static final int SC_SERVER_ERROR = 500;
+    public static final int SC_UNAVAILABLE = 503;
+    public static final int SC_GATEWAY_TIMEOUT = 504;
+
+    /**
+     * Call timeout in milliseconds. The server cancels the call once it expires.
+     */
+    public static final String HEADER_TIMEOUT = "X-RPC-Timeout";
+
+    /**
+     * Delay in seconds after which a client may repeat a request rejected because of overload.
+     */
+    public static final String HEADER_RETRY_AFTER = "Retry-After";
+
+    /**
+     * Content type of server-sent events, used for results of methods returning {@link java.util.concurrent.Flow.Publisher}.
+     */
+    public static final String CONTENT_TYPE_EVENT_STREAM = "text/event-stream";
 
     public static final Gson DEFAULT_GSON = new GsonBuilder()
         .setStrictness(Strictness.LENIENT)
@@ -0,0 +1,127 @@
+/*
+ * DBeaver - Universal Database Manager
+ * Copyright (C) 2010-2024 DBeaver Corp and others
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jkiss.utils.rest;
+
+import org.jkiss.code.NotNull;
+import org.jkiss.code.Nullable;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Context of the remote call being executed by {@link RestServer}.
+ * <p>
+ * Clients send call timeout with the request. The call is cancelled once its deadline passes,
+ * as the client does not wait for the result anymore. Long-running methods should check
+ * {@link #isCancelled()} and stop early.
+ */
+public final class RpcContext {
+
+    private static final ThreadLocal<RpcContext> CURRENT = new ThreadLocal<>();
+
+    private final long deadline;
+    private final boolean hasDeadline;
+    private volatile boolean cancelled;
+    private Thread interruptibleThread;
+    private Future<?> future;
+
+    RpcContext(long deadline, boolean hasDeadline) {
+        this.deadline = deadline;
+        this.hasDeadline = hasDeadline;
+    }
+
+    /**
+     * Returns context of the call executed by the current thread, or {@code null} if the thread does not execute a call.
+     */
+    @Nullable
+    public static RpcContext current() {
+        return CURRENT.get();
+    }
+
+    public boolean hasDeadline() {
+        return hasDeadline;
+    }
+
+    /**
+     * Returns time left till the deadline, or {@link Long#MAX_VALUE} if the call has no deadline.
+     */
+    public long getRemainingTime(@NotNull TimeUnit unit) {
+        if (!hasDeadline) {
+            return Long.MAX_VALUE;
+        }
+        return unit.convert(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    boolean isExpired() {
+        return hasDeadline && deadline - System.nanoTime() <= 0;
+    }
+
+    /**
+     * Whether the client gave up waiting for the result.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Throws an exception if the call is cancelled.
+     */
+    public void checkCancelled() throws RpcException {
+        if (cancelled) {
+            throw new RpcException("Call is cancelled, deadline exceeded");
+        }
+    }
+
+    synchronized void cancel() {
+        cancelled = true;
+        if (interruptibleThread != null) {
+            interruptibleThread.interrupt();
+        }
+        if (future != null) {
+            future.cancel(true);
+        }
+    }
+
+    void attach(@Nullable Thread interruptibleThread) {
+        synchronized (this) {
+            this.interruptibleThread = interruptibleThread;
+        }
+        CURRENT.set(this);
+    }
+
+    void detach() {
+        CURRENT.remove();
+        synchronized (this) {
+            if (interruptibleThread == null) {
+                return;
+            }
+            interruptibleThread = null;
+        }
+        // No interrupts after this point, clear one which came after the method returned
+        Thread.interrupted();
+    }
+
+    /**
+     * Sets future of the asynchronous method result. It is cancelled together with the call.
+     */
+    synchronized void setFuture(@NotNull Future<?> future) {
+        this.future = future;
+        if (cancelled) {
+            future.cancel(true);
+        }
+    }
+}
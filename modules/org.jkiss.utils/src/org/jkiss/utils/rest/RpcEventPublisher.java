@@ -0,0 +1,313 @@
+/*
+ * DBeaver - Universal Database Manager
+ * Copyright (C) 2010-2024 DBeaver Corp and others
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jkiss.utils.rest;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import org.jkiss.code.NotNull;
+import org.jkiss.code.Nullable;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Client side of a remote method returning {@link Flow.Publisher}: reads server-sent events of the response.
+ * Each subscriber gets its own request, sent when it subscribes. Events are read in a separate thread and only while
+ * the subscriber has outstanding demand, so a slow subscriber holds back the server rather than buffering events.
+ * The subscription fails if nothing, not even a heartbeat, is received for the idle timeout while reading,
+ * so a half-open connection does not block the reading thread forever.
+ */
+final class RpcEventPublisher<T> implements Flow.Publisher<T> {
+    private static final Logger log = Logger.getLogger(RpcEventPublisher.class.getName());
+
+    private static final String EVENT_MESSAGE = "message";
+    private static final String EVENT_ERROR = "error";
+
+    private final String name;
+    private final Callable<InputStream> request;
+    private final TypeAdapter<T> itemAdapter;
+    private final Gson gson;
+    private final long idleTimeout;
+
+    /**
+     * @param request     sends request and returns stream of the successful response
+     * @param idleTimeout idle timeout in seconds, zero disables the timeout
+     */
+    RpcEventPublisher(
+        @NotNull String name,
+        @NotNull Callable<InputStream> request,
+        @NotNull TypeAdapter<T> itemAdapter,
+        @NotNull Gson gson,
+        int idleTimeout
+    ) {
+        this.name = name;
+        this.request = request;
+        this.itemAdapter = itemAdapter;
+        this.gson = gson;
+        this.idleTimeout = TimeUnit.SECONDS.toNanos(idleTimeout);
+    }
+
+    @Override
+    public void subscribe(@NotNull Flow.Subscriber<? super T> subscriber) {
+        final EventSubscription subscription = new EventSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+        final Thread thread = new Thread(subscription, "RPC event stream " + name);
+        thread.setDaemon(true);
+        subscription.thread = thread;
+        thread.start();
+        if (idleTimeout > 0) {
+            subscription.scheduleIdleCheck(idleTimeout);
+        }
+    }
+
+    private final class EventSubscription implements Flow.Subscription, Runnable {
+        private final Flow.Subscriber<? super T> subscriber;
+        private long demand;
+        private boolean cancelled;
+        private Throwable demandError;
+        private InputStream stream;
+        private volatile Thread thread;
+        // Whether the thread is blocked in the transport rather than in the subscriber
+        private volatile boolean reading;
+        private volatile long lastReadTime = System.nanoTime();
+        private volatile boolean finished;
+        private boolean timedOut;
+
+        EventSubscription(@NotNull Flow.Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public synchronized void request(long n) {
+            if (n <= 0) {
+                demandError = new IllegalArgumentException("Non-positive number of items requested: " + n);
+            } else {
+                demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+            }
+            notifyAll();
+        }
+
+        @Override
+        public void cancel() {
+            final InputStream stream;
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                cancelled = true;
+                stream = this.stream;
+                notifyAll();
+            }
+            abortReading(stream);
+        }
+
+        private void abortReading(@Nullable InputStream stream) {
+            // Unblock the reading thread
+            final Thread thread = this.thread;
+            if (thread != null && reading && thread != Thread.currentThread()) {
+                thread.interrupt();
+            }
+            if (stream != null) {
+                closeStream(stream);
+            }
+        }
+
+        private void scheduleIdleCheck(long delay) {
+            CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS).execute(this::checkIdle);
+        }
+
+        /**
+         * Aborts reading if nothing was received for the idle timeout. Waiting for demand is not counted.
+         */
+        private void checkIdle() {
+            if (finished || isCancelled()) {
+                return;
+            }
+            final long idle = reading ? System.nanoTime() - lastReadTime : 0;
+            if (idle < idleTimeout) {
+                scheduleIdleCheck(idleTimeout - idle);
+                return;
+            }
+            final InputStream stream;
+            synchronized (this) {
+                timedOut = true;
+                stream = this.stream;
+            }
+            abortReading(stream);
+        }
+
+        private void startReading() {
+            lastReadTime = System.nanoTime();
+            reading = true;
+        }
+
+        @Override
+        public void run() {
+            InputStream response = null;
+            try {
+                if (!awaitDemand()) {
+                    return;
+                }
+                startReading();
+                response = request.call();
+                reading = false;
+                synchronized (this) {
+                    if (cancelled) {
+                        return;
+                    }
+                    stream = response;
+                }
+                final BufferedReader reader = new BufferedReader(new InputStreamReader(new FilterInputStream(response) {
+                    @Override
+                    public int read(@NotNull byte[] b, int off, int len) throws IOException {
+                        final int count = super.read(b, off, len);
+                        lastReadTime = System.nanoTime();
+                        return count;
+                    }
+                }, StandardCharsets.UTF_8));
+                while (awaitDemand()) {
+                    startReading();
+                    final Event event = readEvent(reader);
+                    reading = false;
+                    if (event == null) {
+                        subscriber.onComplete();
+                        return;
+                    }
+                    if (EVENT_MESSAGE.equals(event.type)) {
+                        final T item = itemAdapter.fromJson(event.data);
+                        synchronized (this) {
+                            demand--;
+                        }
+                        subscriber.onNext(item);
+                    } else if (EVENT_ERROR.equals(event.type)) {
+                        subscriber.onError(new RpcException(gson.fromJson(event.data, String.class)));
+                        return;
+                    }
+                }
+            } catch (Throwable e) {
+                if (isCancelled()) {
+                    log.log(Level.FINE, "RPC event stream " + name + " cancelled: " + e.getMessage());
+                    return;
+                }
+                if (isTimedOut()) {
+                    // The thread was interrupted to abort reading
+                    Thread.interrupted();
+                    subscriber.onError(new RpcException("No events received from " + name + " for "
+                        + TimeUnit.NANOSECONDS.toSeconds(idleTimeout) + " seconds", e));
+                    return;
+                }
+                if (e instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
+                }
+                subscriber.onError(e instanceof IOException || e instanceof JsonParseException
+                    ? new RpcException("Failed to read events: " + e.getMessage(), e)
+                    : e);
+            } finally {
+                finished = true;
+                if (response != null) {
+                    closeStream(response);
+                }
+            }
+        }
+
+        /**
+         * Waits until the subscriber requests more items. Returns {@code false} if the subscription has ended.
+         */
+        private boolean awaitDemand() throws InterruptedException {
+            final Throwable error;
+            synchronized (this) {
+                while (demand == 0 && !cancelled && demandError == null) {
+                    wait();
+                }
+                if (cancelled) {
+                    return false;
+                }
+                error = demandError;
+                cancelled = error != null;
+            }
+            if (error != null) {
+                subscriber.onError(error);
+                return false;
+            }
+            return true;
+        }
+
+        private synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        private synchronized boolean isTimedOut() {
+            return timedOut;
+        }
+    }
+
+    private void closeStream(@NotNull InputStream stream) {
+        try {
+            stream.close();
+        } catch (IOException e) {
+            log.log(Level.FINE, "Error closing RPC event stream " + name, e);
+        }
+    }
+
+    /**
+     * Reads next event, skipping comments (heartbeats). Returns {@code null} at the end of stream.
+     */
+    @Nullable
+    private static Event readEvent(@NotNull BufferedReader reader) throws IOException {
+        String type = EVENT_MESSAGE;
+        StringBuilder data = null;
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            if (line.isEmpty()) {
+                if (data != null) {
+                    return new Event(type, data.toString());
+                }
+                type = EVENT_MESSAGE;
+                continue;
+            }
+            if (line.charAt(0) == ':') {
+                continue;
+            }
+            final int colonPos = line.indexOf(':');
+            final String field = colonPos < 0 ? line : line.substring(0, colonPos);
+            String value = colonPos < 0 ? "" : line.substring(colonPos + 1);
+            if (value.startsWith(" ")) {
+                value = value.substring(1);
+            }
+            if (field.equals("event")) {
+                type = value;
+            } else if (field.equals("data")) {
+                if (data == null) {
+                    data = new StringBuilder(value);
+                } else {
+                    data.append('\n').append(value);
+                }
+            }
+        }
+        // Incomplete event is discarded
+        return null;
+    }
+
+    private record Event(@NotNull String type, @NotNull String data) {
+    }
+}
@@ -18,24 +18,58 @@ package org.jkiss.utils.rest;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 import org.jkiss.code.NotNull;
 import org.jkiss.code.Nullable;
 import org.jkiss.utils.BeanUtils;
-import org.jkiss.utils.CommonUtils;
+import org.jkiss.utils.IOUtils;
+import org.jkiss.utils.io.CountingInputStream;
+import org.jkiss.utils.io.FastByteArrayOutputStream;
 
-import java.lang.reflect.*;
+import java.io.*;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
 import java.net.URI;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public abstract class RpcInvocationHandler implements InvocationHandler, RestProxy {
 
+    private static final Logger log = Logger.getLogger(RpcInvocationHandler.class.getName());
+
+    private static final Object[] NO_ARGS = new Object[0];
+    private static final RpcCallListener[] NO_LISTENERS = new RpcCallListener[0];
+
     @NotNull
     private final Class<?> clientClass;
     protected final URI uri;
     protected final Gson gson;
     protected final String userAgent;
     protected final ThreadLocal<Type> resultType = new ThreadLocal<>();
+    private final Map<Method, RpcMethodDescriptor> descriptors = new ConcurrentHashMap<>();
+    private RpcCodec codec = JsonCodec.INSTANCE;
+    // Serializes payloads of the codec
+    private Gson codecGson;
+    private volatile RpcCallListener[] callListeners = NO_LISTENERS;
+    private final ThreadLocal<RpcCall> currentCall = new ThreadLocal<>();
+    private RpcResponseCache responseCache;
 
     protected RpcInvocationHandler(
         @NotNull Class<?> clientClass,
@@ -46,11 +80,12 @@ public abstract class RpcInvocationHandler implements InvocationHandler, RestPro
         this.clientClass = clientClass;
         this.uri = uri;
         this.gson = gson;
+        this.codecGson = gson;
         this.userAgent = userAgent;
     }
 
     @Override
-    public synchronized Object invoke(Object proxy, Method method, Object[] args) throws RpcException {
+    public Object invoke(Object proxy, Method method, Object[] args) throws RpcException {
         // Client-side API
         Class<?> declaringClass = method.getDeclaringClass();
         if (declaringClass == Object.class) {
@@ -62,83 +97,471 @@ public abstract class RpcInvocationHandler implements InvocationHandler, RestPro
             closeClient();
             return null;
         }
+
+        // Result type override belongs to the calling thread and is consumed by its next call,
+        // so concurrent calls through the same proxy never see each other's state
+        final Type resultTypeOverride = resultType.get();
+        if (resultTypeOverride != null) {
+            resultType.remove();
+        }
         if (isClientClosed()) {
             throw new RpcException("Rest client has been terminated");
         }
 
         // Call remote
-        final RequestMapping mapping = method.getDeclaredAnnotation(RequestMapping.class);
+        final RpcMethodDescriptor descriptor = getMethodDescriptor(method);
+        final Type returnType = resultTypeOverride != null
+            ? RpcMethodDescriptor.normalizeResultType(resultTypeOverride)
+            : descriptor.getResultType();
 
-        final Parameter[] parameters = method.getParameters();
-        final Map<String, JsonElement> values = new LinkedHashMap<>(parameters.length);
+        return callRemoteMethod(descriptor, args == null ? NO_ARGS : args, returnType);
+    }
 
-        for (int i = 0; i < parameters.length; i++) {
-            final Parameter p = parameters[i];
-            final RequestParameter param = p.getDeclaredAnnotation(RequestParameter.class);
+    /**
+     * Calls remote method. Returns the call result, or a future of the result for
+     * {@link RpcMethodDescriptor#isAsyncResult() asynchronous} methods.
+     */
+    @Nullable
+    protected Object callRemoteMethod(
+        @NotNull RpcMethodDescriptor descriptor,
+        @NotNull Object[] args,
+        @NotNull Type returnType
+    ) throws RpcException {
+        if (responseCache != null && descriptor.getCacheTtl() > 0 && !isStreamResult(returnType) && !isEventResult(returnType)) {
+            return callCachedMethod(descriptor, args, returnType, responseCache);
+        }
+        final RpcCallListener[] listeners = callListeners;
+        if (listeners.length > 0) {
+            return callObservedMethod(descriptor, args, returnType, listeners);
+        }
+        final FastByteArrayOutputStream request = writeRequest(descriptor, args);
 
-            String paramName = param == null ? p.getName() : param.value();
-            if (CommonUtils.isEmptyTrimmed(paramName)) {
-                throw createException(method, "one or more of parameters has empty name (it can be specified in @RequestParameter)");
-            }
-            JsonElement argument;
+        if (descriptor.isAsyncResult()) {
+            // Asynchronous call: the calling thread does not wait for the response
+            return invokeRemoteMethodAsync(descriptor, request)
+                .thenApply(response -> readResult(response, returnType));
+        }
+
+        try {
+            InputStream response = invokeRemoteMethod(descriptor, request);
+
+            return readResult(response, returnType);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RpcException(e);
+        }
+    }
+
+    /**
+     * Calls remote method or returns its cached result. Calls of cached methods are not reported to listeners.
+     */
+    @Nullable
+    private Object callCachedMethod(
+        @NotNull RpcMethodDescriptor descriptor,
+        @NotNull Object[] args,
+        @NotNull Type returnType,
+        @NotNull RpcResponseCache cache
+    ) throws RpcException {
+        final FastByteArrayOutputStream request = writeRequest(descriptor, args);
+        final RpcResponseCache.Key key = new RpcResponseCache.Key(
+            descriptor.getEndpoint().toString(), getCodec().getContentType(), request.toByteArray());
+        final long ttl = TimeUnit.SECONDS.toNanos(descriptor.getCacheTtl());
+        if (descriptor.isAsyncResult()) {
+            return cache.get(key, ttl, () -> invokeRemoteMethodAsync(descriptor, request).thenApply(RpcInvocationHandler::readResponseData))
+                .thenApply(data -> readResult(new ByteArrayInputStream(data), returnType));
+        }
+        final byte[] data = (byte[]) waitForResult(cache.get(key, ttl, () -> {
             try {
-                argument = gson.toJsonTree(args[i]);
-            } catch (Throwable e) {
-                throw new RpcException("Failed to serialize argument " + i + ": " + e.getMessage(), e);
+                return CompletableFuture.completedFuture(readResponseData(invokeRemoteMethod(descriptor, request)));
+            } catch (Exception e) {
+                return CompletableFuture.failedFuture(e instanceof RuntimeException ? e : new RpcException(e));
             }
-            if (values.put(paramName, argument) != null) {
-                throw createException(method, "one or more of its parameters share the same name specified in @RequestParameter");
+        }));
+        return readResult(new ByteArrayInputStream(data), returnType);
+    }
+
+    @NotNull
+    private static byte[] readResponseData(@NotNull InputStream response) {
+        try (response) {
+            return response.readAllBytes();
+        } catch (IOException e) {
+            throw new RpcException("Failed to read response: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Calls remote method reporting the call to listeners.
+     */
+    @Nullable
+    private Object callObservedMethod(
+        @NotNull RpcMethodDescriptor descriptor,
+        @NotNull Object[] args,
+        @NotNull Type returnType,
+        @NotNull RpcCallListener[] listeners
+    ) throws RpcException {
+        final RpcCall call = new RpcCall(descriptor);
+        final FastByteArrayOutputStream request;
+        try {
+            request = writeRequest(descriptor, args);
+            call.requestSerialized(request.size());
+            for (RpcCallListener listener : listeners) {
+                listener.onRequest(call, call.requestHeaders);
             }
+        } catch (RuntimeException e) {
+            completeCall(call, listeners, e);
+            throw e;
         }
 
+        currentCall.set(call);
         try {
-            String contents = invokeRemoteMethod(method, mapping, values);
+            if (descriptor.isAsyncResult()) {
+                return invokeRemoteMethodAsync(descriptor, request)
+                    .thenApply(response -> readObservedResult(call, response, returnType))
+                    .whenComplete((result, error) -> completeCall(
+                        call,
+                        listeners,
+                        error instanceof CompletionException && error.getCause() != null ? error.getCause() : error));
+            }
+            final Object result;
+            try {
+                result = readObservedResult(call, invokeRemoteMethod(descriptor, request), returnType);
+            } catch (RuntimeException e) {
+                completeCall(call, listeners, e);
+                throw e;
+            } catch (Exception e) {
+                final RpcException error = new RpcException(e);
+                completeCall(call, listeners, error);
+                throw error;
+            }
+            completeCall(call, listeners, null);
+            return result;
+        } finally {
+            currentCall.remove();
+        }
+    }
+
+    @Nullable
+    private Object readObservedResult(@NotNull RpcCall call, @NotNull InputStream response, @NotNull Type returnType) {
+        call.responseReceived();
+        final CountingInputStream counter = new CountingInputStream(response);
+        final Object result = readResult(counter, returnType);
+        call.responseRead(counter.getCount());
+        return result;
+    }
 
-            Type returnType = resultType.get();
-            if (returnType == null) {
-                returnType = method.getGenericReturnType();
-            } else {
-                resultType.remove();
+    private static void completeCall(@NotNull RpcCall call, @NotNull RpcCallListener[] listeners, @Nullable Throwable error) {
+        call.completed(error);
+        for (RpcCallListener listener : listeners) {
+            try {
+                listener.onComplete(call);
+            } catch (RuntimeException e) {
+                log.log(Level.WARNING, "Call listener failed", e);
             }
-            if (returnType == void.class) {
-                return null;
+        }
+    }
+
+    /**
+     * Returns call being sent by the current thread, if there are call listeners.
+     */
+    @Nullable
+    protected RpcCall getCurrentCall() {
+        return currentCall.get();
+    }
+
+    /**
+     * Sets cache of {@link CacheResult} method results. Results are not cached by default.
+     */
+    protected void setResponseCache(@Nullable RpcResponseCache responseCache) {
+        this.responseCache = responseCache;
+    }
+
+    /**
+     * Adds listener of remote calls. Calls are not observed while there are no listeners.
+     */
+    protected synchronized void addCallListener(@NotNull RpcCallListener listener) {
+        final RpcCallListener[] listeners = Arrays.copyOf(callListeners, callListeners.length + 1);
+        listeners[listeners.length - 1] = listener;
+        callListeners = listeners;
+    }
+
+    /**
+     * Waits for the result of a call performed asynchronously on behalf of a synchronous method.
+     */
+    @Nullable
+    protected static Object waitForResult(@NotNull CompletableFuture<?> future) throws RpcException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RpcException("Remote call interrupted", e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException re) {
+                throw re;
             }
-            if (returnType instanceof TypeVariable) {
-                Type[] bounds = ((TypeVariable<?>) returnType).getBounds();
-                if (bounds.length > 0) {
-                    returnType = bounds[0];
+            throw new RpcException(cause);
+        }
+    }
+
+    /**
+     * Returns descriptor of the remote method. Descriptors are resolved on the first call and cached.
+     */
+    @NotNull
+    protected RpcMethodDescriptor getMethodDescriptor(@NotNull Method method) throws RpcException {
+        RpcMethodDescriptor descriptor = descriptors.get(method);
+        if (descriptor == null) {
+            descriptor = descriptors.computeIfAbsent(
+                method,
+                m -> new RpcMethodDescriptor(m, resolveEndpoint(m, m.getDeclaredAnnotation(RequestMapping.class))));
+        }
+        return descriptor;
+    }
+
+    @NotNull
+    protected FastByteArrayOutputStream writeRequest(@NotNull RpcMethodDescriptor descriptor, @NotNull Object[] args) {
+        final FastByteArrayOutputStream buffer = new FastByteArrayOutputStream();
+        try (JsonWriter writer = codec.createWriter(codecGson, buffer)) {
+            writeRequest(writer, descriptor, args);
+        } catch (IOException e) {
+            throw new RpcException("Failed to serialize request: " + e.getMessage(), e);
+        }
+        return buffer;
+    }
+
+    /**
+     * Reads the call result straight from the response stream. The stream is closed afterwards.
+     * {@link Iterator} and {@link Stream} results are read lazily and keep the stream open until they are consumed or closed.
+     */
+    @Nullable
+    protected Object readResult(@NotNull InputStream response, @NotNull Type returnType) {
+        if (returnType == void.class || returnType == Void.class) {
+            // Void results have no content
+            IOUtils.close(response);
+            return null;
+        }
+        try {
+            if (isStreamResult(returnType)) {
+                final Type elementType = returnType instanceof ParameterizedType pt ? pt.getActualTypeArguments()[0] : Object.class;
+                final ElementIterator iterator = new ElementIterator(
+                    codec.createReader(codecGson, response),
+                    codecGson.getAdapter(TypeToken.get(elementType)));
+                if (TypeToken.get(returnType).getRawType() == Iterator.class) {
+                    return iterator;
                 }
+                return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED), false)
+                    .onClose(iterator::close);
             }
-            if (returnType instanceof ParameterizedType && ((ParameterizedType) returnType).getRawType() == Class.class) {
-                // Convert to raw class type to force our serializer to work
-                returnType = Class.class;
+            try (JsonReader reader = codec.createReader(codecGson, response)) {
+                return codecGson.fromJson(reader, returnType);
             }
+        } catch (IOException e) {
+            throw new RpcException("Failed to read response: " + e.getMessage(), e);
+        }
+    }
 
-            try {
-                return gson.fromJson(contents, returnType);
-            } catch (Throwable e) {
-                //just debug breakpoint, rethrow it
-                throw e;
-            }
+    @NotNull
+    protected RpcCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Returns Gson serializing payloads of the {@link #getCodec() codec}.
+     */
+    @NotNull
+    protected Gson getCodecGson() {
+        return codecGson;
+    }
+
+    /**
+     * Sets codec of request and response payloads. JSON is used by default.
+     */
+    protected void setCodec(@NotNull RpcCodec codec) {
+        this.codec = codec;
+        this.codecGson = codec.configureGson(gson);
+    }
+
+    /**
+     * Whether result of this type is read lazily from the response stream.
+     */
+    protected static boolean isStreamResult(@NotNull Type returnType) {
+        final Class<?> rawType = TypeToken.get(returnType).getRawType();
+        return rawType == Iterator.class || rawType == Stream.class;
+    }
+
+    /**
+     * Whether result of this type is a subscription to server-sent events, see {@link HttpTransportInvocationHandler}.
+     */
+    protected static boolean isEventResult(@NotNull Type returnType) {
+        return TypeToken.get(returnType).getRawType() == Flow.Publisher.class;
+    }
+
+    protected abstract boolean isClientClosed();
+
+    /**
+     * Resolves remote endpoint of the method. Called once per method.
+     */
+    @NotNull
+    protected URI resolveEndpoint(@NotNull Method method, @Nullable RequestMapping mapping) {
+        return uri;
+    }
+
+    /**
+     * Writes request body for the given method call: an object of arguments keyed by parameter names.
+     */
+    protected void writeRequest(
+        @NotNull JsonWriter writer,
+        @NotNull RpcMethodDescriptor descriptor,
+        @NotNull Object[] args
+    ) throws IOException {
+        final List<String> parameterNames = descriptor.getParameterNames();
+        writer.beginObject();
+        for (int i = 0; i < parameterNames.size(); i++) {
+            writer.name(parameterNames.get(i));
+            writeArgument(writer, args, i);
+        }
+        writer.endObject();
+    }
+
+    /**
+     * Writes a call argument using its runtime type.
+     */
+    protected void writeArgument(@NotNull JsonWriter writer, @NotNull Object[] args, int index) throws IOException {
+        final Object value = args[index];
+        if (value == null) {
+            writer.nullValue();
+            return;
+        }
+        try {
+            codecGson.toJson(value, value.getClass(), writer);
         } catch (RuntimeException e) {
-            throw e;
-        } catch (Exception e) {
-            throw new RpcException(e);
+            throw new RpcException("Failed to serialize argument " + index + ": " + e.getMessage(), e);
         }
     }
 
-    protected abstract boolean isClientClosed();
+    /**
+     * Sends request to the remote endpoint and returns stream of the successful response contents.
+     * By default calls {@link #invokeRemoteMethod(Method, RequestMapping, Map)} of handlers written
+     * before requests were serialized by the caller. That works with the JSON codec only.
+     */
+    @NotNull
+    protected InputStream invokeRemoteMethod(
+        @NotNull RpcMethodDescriptor descriptor,
+        @NotNull FastByteArrayOutputStream request
+    ) throws IOException, InterruptedException {
+        if (codec != JsonCodec.INSTANCE) {
+            throw new RpcException("Codec " + codec.getContentType() + " is not supported by " + getClass().getName());
+        }
+        final Map<String, JsonElement> values = new LinkedHashMap<>();
+        try (Reader reader = new InputStreamReader(request.toInputStream(), StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, JsonElement> entry : JsonParser.parseReader(reader).getAsJsonObject().entrySet()) {
+                values.put(entry.getKey(), entry.getValue());
+            }
+        }
+        final String contents = invokeRemoteMethod(descriptor.getMethod(), descriptor.getMapping(), values);
+        return new ByteArrayInputStream(contents.getBytes(StandardCharsets.UTF_8));
+    }
 
-    protected abstract String invokeRemoteMethod(
+    /**
+     * Sends arguments keyed by parameter names to the remote endpoint and returns the successful response contents.
+     *
+     * @deprecated override {@link #invokeRemoteMethod(RpcMethodDescriptor, FastByteArrayOutputStream)} instead,
+     * which receives serialized request and does not buffer the response
+     */
+    @Deprecated
+    protected String invokeRemoteMethod(
         @NotNull Method method,
         @Nullable RequestMapping mapping,
-        @NotNull Map<String, JsonElement> values);
+        @NotNull Map<String, JsonElement> values
+    ) {
+        throw new UnsupportedOperationException("Remote method invocation is not implemented by " + getClass().getName());
+    }
+
+    /**
+     * Invokes remote method without blocking the calling thread.
+     * Used for methods with {@link RpcMethodDescriptor#isAsyncResult() asynchronous result}.
+     * The result is read in the thread completing the future, so the returned stream must not block,
+     * e.g. the response must be received completely.
+     */
+    @NotNull
+    protected CompletableFuture<InputStream> invokeRemoteMethodAsync(
+        @NotNull RpcMethodDescriptor descriptor,
+        @NotNull FastByteArrayOutputStream request
+    ) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return new ByteArrayInputStream(readResponseData(invokeRemoteMethod(descriptor, request)));
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new CompletionException(new RpcException(e));
+            }
+        });
+    }
 
     protected abstract void closeClient();
 
-    @NotNull
-    private static RpcException createException(@NotNull Method method, @NotNull String reason) {
-        return new RpcException("Unable to invoke the method " + method + " because " + reason);
+    /**
+     * Reads elements of a JSON array result on demand.
+     */
+    private static class ElementIterator implements Iterator<Object>, Closeable {
+        private final JsonReader reader;
+        private final TypeAdapter<?> elementAdapter;
+        private boolean started;
+        private boolean finished;
+
+        ElementIterator(@NotNull JsonReader reader, @NotNull TypeAdapter<?> elementAdapter) {
+            this.reader = reader;
+            this.elementAdapter = elementAdapter;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (finished) {
+                return false;
+            }
+            try {
+                if (!started) {
+                    started = true;
+                    if (reader.peek() == JsonToken.NULL) {
+                        close();
+                        return false;
+                    }
+                    reader.beginArray();
+                }
+                if (reader.hasNext()) {
+                    return true;
+                }
+                reader.endArray();
+                close();
+                return false;
+            } catch (IOException e) {
+                close();
+                throw new RpcException("Failed to read response: " + e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public Object next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            try {
+                return elementAdapter.read(reader);
+            } catch (IOException e) {
+                close();
+                throw new RpcException("Failed to read response: " + e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public void close() {
+            finished = true;
+            try {
+                reader.close();
+            } catch (IOException ignored) {
+            }
+        }
     }
 
     @Override
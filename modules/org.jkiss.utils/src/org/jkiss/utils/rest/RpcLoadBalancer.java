@@ -0,0 +1,113 @@
+/*
+ * DBeaver - Universal Database Manager
+ * Copyright (C) 2010-2024 DBeaver Corp and others
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jkiss.utils.rest;
+
+import org.jkiss.code.NotNull;
+
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Chooses server for each request of a client connected to several identical servers,
+ * see {@link RestClient#builder(List, Class)}.
+ * <p>
+ * Servers which repeatedly fail to respond are ejected for a while, the balancer is offered only the rest of them.
+ */
+public interface RpcLoadBalancer {
+
+    /**
+     * Chooses server for the next request.
+     *
+     * @param servers non-empty list of servers available for the request
+     */
+    @NotNull
+    Server select(@NotNull List<? extends Server> servers);
+
+    /**
+     * Server as seen by the client.
+     */
+    interface Server {
+
+        @NotNull
+        URI getUri();
+
+        /**
+         * Number of requests sent to the server and not yet responded.
+         */
+        int getOutstandingRequests();
+
+        /**
+         * Recent response latency in nanoseconds (moving average), or zero if there were no responses yet.
+         */
+        long getLatency();
+    }
+
+    /**
+     * Sends requests to servers in turn.
+     */
+    @NotNull
+    static RpcLoadBalancer roundRobin() {
+        final AtomicInteger next = new AtomicInteger();
+        return servers -> servers.get(Math.floorMod(next.getAndIncrement(), servers.size()));
+    }
+
+    /**
+     * Sends request to the server with the least number of outstanding requests.
+     */
+    @NotNull
+    static RpcLoadBalancer leastOutstanding() {
+        return servers -> {
+            // Start from a random server, so ties do not pile up on the first one
+            final int offset = ThreadLocalRandom.current().nextInt(servers.size());
+            Server best = null;
+            for (int i = 0; i < servers.size(); i++) {
+                final Server server = servers.get((offset + i) % servers.size());
+                if (best == null || server.getOutstandingRequests() < best.getOutstandingRequests()) {
+                    best = server;
+                }
+            }
+            return best;
+        };
+    }
+
+    /**
+     * Picks two random servers and sends request to the one with lower expected latency,
+     * which is its recent latency multiplied by the number of requests queued to it.
+     * Servers with no known latency are preferred, so new and recovered servers get probed.
+     */
+    @NotNull
+    static RpcLoadBalancer powerOfTwoChoices() {
+        return servers -> {
+            final int size = servers.size();
+            if (size == 1) {
+                return servers.get(0);
+            }
+            final ThreadLocalRandom random = ThreadLocalRandom.current();
+            final int first = random.nextInt(size);
+            final int second = (first + 1 + random.nextInt(size - 1)) % size;
+            final Server a = servers.get(first);
+            final Server b = servers.get(second);
+            return getExpectedLatency(b) < getExpectedLatency(a) ? b : a;
+        };
+    }
+
+    private static double getExpectedLatency(@NotNull Server server) {
+        return (double) server.getLatency() * (server.getOutstandingRequests() + 1);
+    }
+}
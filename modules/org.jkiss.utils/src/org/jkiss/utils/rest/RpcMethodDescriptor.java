@@ -0,0 +1,174 @@
+/*
+ * DBeaver - Universal Database Manager
+ * Copyright (C) 2010-2024 DBeaver Corp and others
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jkiss.utils.rest;
+
+import org.jkiss.code.NotNull;
+import org.jkiss.code.Nullable;
+import org.jkiss.utils.CommonUtils;
+
+import java.lang.reflect.*;
+import java.net.URI;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Future;
+
+/**
+ * Client-side description of a remote method.
+ * Resolved once per method by {@link RpcInvocationHandler}, immutable afterwards.
+ */
+public final class RpcMethodDescriptor {
+
+    @NotNull
+    private final Method method;
+    @Nullable
+    private final RequestMapping mapping;
+    @NotNull
+    private final List<String> parameterNames;
+    @NotNull
+    private final Type resultType;
+    private final boolean asyncResult;
+    private final boolean idempotent;
+    private final int cacheTtl;
+    @NotNull
+    private final URI endpoint;
+
+    RpcMethodDescriptor(@NotNull Method method, @NotNull URI endpoint) throws RpcException {
+        this.method = method;
+        this.mapping = method.getDeclaredAnnotation(RequestMapping.class);
+        this.idempotent = method.isAnnotationPresent(Idempotent.class);
+        final CacheResult cacheResult = method.getDeclaredAnnotation(CacheResult.class);
+        this.cacheTtl = cacheResult == null ? 0 : cacheResult.ttl();
+        this.endpoint = endpoint;
+
+        final Parameter[] parameters = method.getParameters();
+        final Set<String> names = new HashSet<>(parameters.length);
+        final String[] parameterNames = new String[parameters.length];
+        for (int i = 0; i < parameters.length; i++) {
+            final Parameter p = parameters[i];
+            final RequestParameter param = p.getDeclaredAnnotation(RequestParameter.class);
+
+            String paramName = param == null ? p.getName() : param.value();
+            if (CommonUtils.isEmptyTrimmed(paramName)) {
+                throw createException(method, "one or more of parameters has empty name (it can be specified in @RequestParameter)");
+            }
+            if (!names.add(paramName)) {
+                throw createException(method, "one or more of its parameters share the same name specified in @RequestParameter");
+            }
+            parameterNames[i] = paramName;
+        }
+        this.parameterNames = List.of(parameterNames);
+
+        final Class<?> returnType = method.getReturnType();
+        this.asyncResult = returnType == CompletableFuture.class || returnType == CompletionStage.class || returnType == Future.class;
+        if (asyncResult) {
+            this.resultType = normalizeResultType(
+                method.getGenericReturnType() instanceof ParameterizedType pt ? pt.getActualTypeArguments()[0] : Object.class);
+        } else {
+            this.resultType = normalizeResultType(method.getGenericReturnType());
+        }
+    }
+
+    @NotNull
+    public Method getMethod() {
+        return method;
+    }
+
+    @Nullable
+    public RequestMapping getMapping() {
+        return mapping;
+    }
+
+    /**
+     * Request timeout in seconds, or zero if not specified.
+     */
+    public int getTimeout() {
+        return mapping == null ? 0 : mapping.timeout();
+    }
+
+    /**
+     * Names of the method parameters, unmodifiable.
+     */
+    @NotNull
+    public List<String> getParameterNames() {
+        return parameterNames;
+    }
+
+    /**
+     * Type of the call result. For asynchronous methods it is the type of the future value.
+     */
+    @NotNull
+    public Type getResultType() {
+        return resultType;
+    }
+
+    /**
+     * Whether method returns {@link CompletableFuture}, {@link CompletionStage} or {@link Future}.
+     */
+    public boolean isAsyncResult() {
+        return asyncResult;
+    }
+
+    /**
+     * Whether method is marked {@link Idempotent}, so its calls may be repeated.
+     */
+    public boolean isIdempotent() {
+        return idempotent;
+    }
+
+    /**
+     * Time (in seconds) the result may be cached by the client, or zero if it must not be cached.
+     */
+    public int getCacheTtl() {
+        return cacheTtl;
+    }
+
+    /**
+     * Remote endpoint resolved by the invocation handler.
+     */
+    @NotNull
+    public URI getEndpoint() {
+        return endpoint;
+    }
+
+    @NotNull
+    static Type normalizeResultType(@NotNull Type type) {
+        if (type instanceof TypeVariable) {
+            Type[] bounds = ((TypeVariable<?>) type).getBounds();
+            if (bounds.length > 0) {
+                type = bounds[0];
+            }
+        }
+        if (type instanceof ParameterizedType && ((ParameterizedType) type).getRawType() == Class.class) {
+            // Convert to raw class type to force our serializer to work
+            type = Class.class;
+        }
+        return type;
+    }
+
+    @NotNull
+    private static RpcException createException(@NotNull Method method, @NotNull String reason) {
+        return new RpcException("Unable to invoke the method " + method + " because " + reason);
+    }
+
+    @Override
+    public String toString() {
+        return method.getName() + " -> " + endpoint;
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * DBeaver - Universal Database Manager
+ * Copyright (C) 2010-2024 DBeaver Corp and others
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jkiss.utils.rest;
+
+import org.jkiss.code.NotNull;
+import org.jkiss.code.Nullable;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Client cache of serialized results of {@link CacheResult} methods.
+ * Entries are keyed by endpoint, payload content type and serialized call arguments, and evicted in LRU order once the cache
+ * exceeds its entry count or byte size limit. Concurrent calls with the same arguments share one remote call.
+ * <p>
+ * Results are deserialized on every hit, so callers never share result objects.
+ * The cache may be shared by several clients.
+ */
+public final class RpcResponseCache {
+
+    private final int maxEntries;
+    private final long maxBytes;
+    // Guarded by this, in access order
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long byteSize;
+    private final Map<Key, CompletableFuture<byte[]>> loadingEntries = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private RpcResponseCache(@NotNull Builder builder) {
+        this.maxEntries = builder.maxEntries;
+        this.maxBytes = builder.maxBytes;
+    }
+
+    @NotNull
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    @NotNull
+    public Statistics getStatistics() {
+        synchronized (this) {
+            return new Statistics(hits.sum(), misses.sum(), evictions.sum(), entries.size(), byteSize);
+        }
+    }
+
+    /**
+     * Removes all entries. Calls in progress are not affected.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        byteSize = 0;
+    }
+
+    /**
+     * Returns cached result or loads it. If the same result is being loaded already, waits for it.
+     *
+     * @param ttl    time to live of the loaded result, in nanoseconds
+     * @param loader starts loading of the result, called by the calling thread
+     */
+    @NotNull
+    CompletableFuture<byte[]> get(@NotNull Key key, long ttl, @NotNull Supplier<CompletableFuture<byte[]>> loader) {
+        byte[] data = getCached(key);
+        if (data != null) {
+            hits.increment();
+            return CompletableFuture.completedFuture(data);
+        }
+        final CompletableFuture<byte[]> result = new CompletableFuture<>();
+        final CompletableFuture<byte[]> loading = loadingEntries.putIfAbsent(key, result);
+        if (loading != null) {
+            hits.increment();
+            return loading;
+        }
+        data = getCached(key);
+        if (data != null) {
+            // Loaded while we were registering
+            loadingEntries.remove(key, result);
+            hits.increment();
+            result.complete(data);
+            return result;
+        }
+        misses.increment();
+        CompletableFuture<byte[]> load;
+        try {
+            load = loader.get();
+        } catch (Throwable e) {
+            load = CompletableFuture.failedFuture(e);
+        }
+        load.whenComplete((loaded, error) -> {
+            if (error == null) {
+                put(key, loaded, System.nanoTime() + ttl);
+            }
+            loadingEntries.remove(key, result);
+            if (error == null) {
+                result.complete(loaded);
+            } else {
+                result.completeExceptionally(error);
+            }
+        });
+        return result;
+    }
+
+    @Nullable
+    private synchronized byte[] getCached(@NotNull Key key) {
+        final Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (System.nanoTime() - entry.expiresAt >= 0) {
+            entries.remove(key);
+            byteSize -= entry.size;
+            return null;
+        }
+        return entry.data;
+    }
+
+    private synchronized void put(@NotNull Key key, @NotNull byte[] data, long expiresAt) {
+        final Entry entry = new Entry(data, expiresAt, key.request.length + data.length);
+        if (entry.size > maxBytes) {
+            return;
+        }
+        final Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            byteSize -= previous.size;
+        }
+        byteSize += entry.size;
+        final Iterator<Entry> iterator = entries.values().iterator();
+        while ((entries.size() > maxEntries || byteSize > maxBytes) && iterator.hasNext()) {
+            byteSize -= iterator.next().size;
+            iterator.remove();
+            evictions.increment();
+        }
+    }
+
+    /**
+     * Cache key: endpoint, content type of the {@link RpcCodec codec} and serialized arguments of the call.
+     * Clients sharing the cache may use different codecs, whose results cannot be read by each other.
+     */
+    static final class Key {
+        private final String endpoint;
+        private final String contentType;
+        private final byte[] request;
+        private final int hash;
+
+        Key(@NotNull String endpoint, @NotNull String contentType, @NotNull byte[] request) {
+            this.endpoint = endpoint;
+            this.contentType = contentType;
+            this.request = request;
+            this.hash = 31 * (31 * endpoint.hashCode() + contentType.hashCode()) + Arrays.hashCode(request);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Key key
+                && hash == key.hash
+                && endpoint.equals(key.endpoint)
+                && contentType.equals(key.contentType)
+                && Arrays.equals(request, key.request);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private record Entry(@NotNull byte[] data, long expiresAt, long size) {
+    }
+
+    /**
+     * Cache statistics. Calls which waited for the same result being loaded are counted as hits.
+     */
+    public record Statistics(long hits, long misses, long evictions, int entryCount, long byteSize) {
+        public double getHitRatio() {
+            final long total = hits + misses;
+            return total == 0 ? 0 : (double) hits / total;
+        }
+    }
+
+    public static final class Builder {
+        private int maxEntries = 1000;
+        private long maxBytes = 16 * 1024 * 1024;
+
+        private Builder() {
+        }
+
+        /**
+         * Sets maximum number of cached results. Default is 1000.
+         */
+        @NotNull
+        public Builder setMaxEntries(int maxEntries) {
+            this.maxEntries = maxEntries;
+            return this;
+        }
+
+        /**
+         * Sets maximum total size of cached results and their arguments, in bytes. Default is 16 MB.
+         */
+        @NotNull
+        public Builder setMaxBytes(long maxBytes) {
+            this.maxBytes = maxBytes;
+            return this;
+        }
+
+        @NotNull
+        public RpcResponseCache create() {
+            return new RpcResponseCache(this);
+        }
+    }
+}
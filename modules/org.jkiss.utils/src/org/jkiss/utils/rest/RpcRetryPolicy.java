@@ -0,0 +1,143 @@
+/*
+ * DBeaver - Universal Database Manager
+ * Copyright (C) 2010-2024 DBeaver Corp and others
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jkiss.utils.rest;
+
+import org.jkiss.code.NotNull;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client policy of repeating remote calls, see {@link RestClient.Builder#setRetryPolicy}.
+ * <p>
+ * Calls failed because the server could not be reached are retried after a jittered exponential backoff.
+ * Calls of {@link Idempotent} methods are also retried after any other transport failure, and may be hedged:
+ * if the response does not arrive within the given latency percentile of the endpoint, a second request is sent
+ * and the first response wins.
+ * All attempts of a call share its {@link RequestMapping#timeout() timeout}.
+ */
+public final class RpcRetryPolicy {
+
+    private final int maxAttempts;
+    private final long initialBackoff;
+    private final long maxBackoff;
+    private final double hedgePercentile;
+    private final long minHedgeDelay;
+    private final int hedgeMinSamples;
+
+    private RpcRetryPolicy(@NotNull Builder builder) {
+        this.maxAttempts = builder.maxAttempts;
+        this.initialBackoff = builder.initialBackoff;
+        this.maxBackoff = builder.maxBackoff;
+        this.hedgePercentile = builder.hedgePercentile;
+        this.minHedgeDelay = builder.minHedgeDelay;
+        this.hedgeMinSamples = builder.hedgeMinSamples;
+    }
+
+    @NotNull
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Maximum number of requests sent for one call, including the first one and hedged requests.
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Returns delay in nanoseconds before the given retry (starting from 1).
+     * The delay doubles with every retry, its second half is random so clients failed together do not retry together.
+     */
+    long getBackoff(int retry) {
+        final long bound = Math.min(maxBackoff, initialBackoff << Math.min(retry - 1, 20));
+        if (bound <= 0) {
+            return 0;
+        }
+        return TimeUnit.MILLISECONDS.toNanos(bound / 2 + ThreadLocalRandom.current().nextLong(bound / 2 + 1));
+    }
+
+    /**
+     * Returns delay in nanoseconds after which a slow call is hedged, or zero if it must not be hedged.
+     * Calls are not hedged until the endpoint latency is known well enough.
+     */
+    long getHedgeDelay(@NotNull LatencyHistogram latency) {
+        if (hedgePercentile <= 0 || maxAttempts < 2 || latency.getCount() < hedgeMinSamples) {
+            return 0;
+        }
+        return Math.max(latency.getPercentile(hedgePercentile), TimeUnit.MILLISECONDS.toNanos(minHedgeDelay));
+    }
+
+    public static final class Builder {
+        private int maxAttempts = 3;
+        private long initialBackoff = 50;
+        private long maxBackoff = 1000;
+        private double hedgePercentile;
+        private long minHedgeDelay = 1;
+        private int hedgeMinSamples = 100;
+
+        private Builder() {
+        }
+
+        /**
+         * Sets maximum number of requests sent for one call. Default is 3.
+         */
+        @NotNull
+        public Builder setMaxAttempts(int maxAttempts) {
+            this.maxAttempts = Math.max(1, maxAttempts);
+            return this;
+        }
+
+        /**
+         * Sets delay (in milliseconds) before the first retry and the limit the doubling delay grows to.
+         * Default is 50 and 1000 ms.
+         */
+        @NotNull
+        public Builder setBackoff(long initialBackoff, long maxBackoff) {
+            this.initialBackoff = initialBackoff;
+            this.maxBackoff = maxBackoff;
+            return this;
+        }
+
+        /**
+         * Enables hedging of {@link Idempotent} calls. A call is hedged when it takes longer than the given fraction
+         * (e.g. 0.95) of recent calls of the same endpoint, but not earlier than {@code minHedgeDelay} milliseconds.
+         * Zero (default) disables hedging.
+         */
+        @NotNull
+        public Builder setHedging(double percentile, long minHedgeDelay) {
+            this.hedgePercentile = percentile;
+            this.minHedgeDelay = minHedgeDelay;
+            return this;
+        }
+
+        /**
+         * Sets number of calls of an endpoint observed before its calls are hedged. Default is 100.
+         */
+        @NotNull
+        public Builder setHedgeMinSamples(int hedgeMinSamples) {
+            this.hedgeMinSamples = hedgeMinSamples;
+            return this;
+        }
+
+        @NotNull
+        public RpcRetryPolicy create() {
+            return new RpcRetryPolicy(this);
+        }
+    }
+}
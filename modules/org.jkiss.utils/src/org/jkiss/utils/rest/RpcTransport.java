@@ -0,0 +1,82 @@
+/*
+ * DBeaver - Universal Database Manager
+ * Copyright (C) 2010-2024 DBeaver Corp and others
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jkiss.utils.rest;
+
+import org.jkiss.code.NotNull;
+import org.jkiss.code.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Client transport delivering encoded requests to the server.
+ * Requests and responses follow HTTP semantics: requests are POSTed to the endpoint, responses have status code and headers.
+ */
+public interface RpcTransport {
+
+    /**
+     * Sends request and waits for the response headers. Response body is read by the caller.
+     */
+    @NotNull
+    Response send(@NotNull Request request) throws IOException, InterruptedException;
+
+    /**
+     * Sends request without blocking the calling thread. The future completes once the whole response is received,
+     * so its body may be read on any thread without blocking.
+     */
+    @NotNull
+    CompletableFuture<Response> sendAsync(@NotNull Request request);
+
+    boolean isClosed();
+
+    void close();
+
+    /**
+     * Request to send.
+     *
+     * @param body    request body, valid up to {@code bodyLength} bytes. Must not be modified.
+     * @param timeout timeout in milliseconds, zero means no timeout
+     */
+    record Request(
+        @NotNull URI endpoint,
+        @NotNull Map<String, String> headers,
+        @NotNull byte[] body,
+        int bodyLength,
+        long timeout
+    ) {
+    }
+
+    interface Response {
+
+        int getStatusCode();
+
+        /**
+         * Returns first value of the header. Header names are case-insensitive.
+         */
+        @Nullable
+        String getHeader(@NotNull String name);
+
+        /**
+         * Response body. Must be closed by the caller.
+         */
+        @NotNull
+        InputStream getBody();
+    }
+}
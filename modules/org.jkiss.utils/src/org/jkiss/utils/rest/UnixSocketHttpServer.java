@@ -0,0 +1,658 @@
+/*
+ * DBeaver - Universal Database Manager
+ * Copyright (C) 2010-2024 DBeaver Corp and others
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jkiss.utils.rest;
+
+import com.sun.net.httpserver.*;
+import org.jkiss.code.NotNull;
+import org.jkiss.code.Nullable;
+import org.jkiss.utils.CommonUtils;
+
+import java.io.*;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.URI;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Minimal HTTP/1.1 server listening on a Unix domain socket.
+ * Exchanges are passed to regular {@link HttpHandler}s, so handlers written for the JDK server work unchanged.
+ * <p>
+ * The socket file is accessible by its owner only. Remote address of all exchanges is the loopback address.
+ */
+final class UnixSocketHttpServer extends HttpServer {
+    private static final Logger log = Logger.getLogger(UnixSocketHttpServer.class.getName());
+
+    private static final InetSocketAddress LOCAL_ADDRESS = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+
+    private final Path socketPath;
+    private final ServerSocketChannel serverChannel;
+    private final List<Context> contexts = new CopyOnWriteArrayList<>();
+    private final Set<SocketChannel> connections = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger activeExchanges = new AtomicInteger();
+    private final ExecutorService connectionExecutor;
+    private Executor executor;
+    private volatile boolean stopped;
+
+    private UnixSocketHttpServer(@NotNull Path socketPath, @NotNull ServerSocketChannel serverChannel) {
+        this.socketPath = socketPath;
+        this.serverChannel = serverChannel;
+        this.connectionExecutor = Executors.newCachedThreadPool(runnable -> {
+            final Thread thread = new Thread(runnable, "RPC unix socket connection");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Creates server bound to the socket file. A stale socket file left by a previous server is replaced,
+     * socket of a running server is not.
+     */
+    @NotNull
+    static UnixSocketHttpServer create(@NotNull Path socketPath, int backlog) throws IOException {
+        if (Files.exists(socketPath, LinkOption.NOFOLLOW_LINKS)
+            && Files.readAttributes(socketPath, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isOther()) {
+            if (isServerListening(socketPath)) {
+                throw new BindException("Unix socket " + socketPath + " is used by another server");
+            }
+            Files.delete(socketPath);
+        }
+        final ServerSocketChannel channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            bindPrivately(channel, socketPath, backlog);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new UnixSocketHttpServer(socketPath, channel);
+    }
+
+    private static boolean isServerListening(@NotNull Path socketPath) {
+        final SocketChannel channel;
+        try {
+            channel = SocketChannel.open(UnixDomainSocketAddress.of(socketPath));
+        } catch (IOException e) {
+            return false;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.log(Level.FINE, "Error closing unix socket probe connection", e);
+        }
+        return true;
+    }
+
+    /**
+     * Binds channel so that the socket file is never accessible by other users: the socket is created
+     * in a directory accessible by the owner only, restricted and then linked to its place.
+     */
+    private static void bindPrivately(@NotNull ServerSocketChannel channel, @NotNull Path socketPath, int backlog) throws IOException {
+        final Path parent = socketPath.toAbsolutePath().getParent();
+        final Path privateDir;
+        try {
+            privateDir = Files.createTempDirectory(
+                parent, ".rpc", PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system, access is controlled by the directory permissions
+            channel.bind(UnixDomainSocketAddress.of(socketPath), backlog);
+            return;
+        }
+        final Path privatePath = privateDir.resolve("s");
+        try {
+            channel.bind(UnixDomainSocketAddress.of(privatePath), backlog);
+            Files.setPosixFilePermissions(privatePath, PosixFilePermissions.fromString("rw-------"));
+            // Unlike a move, linking fails if another server has taken the path meanwhile
+            Files.createLink(socketPath, privatePath);
+        } finally {
+            Files.deleteIfExists(privatePath);
+            Files.deleteIfExists(privateDir);
+        }
+    }
+
+    @NotNull
+    Path getSocketPath() {
+        return socketPath;
+    }
+
+    @Override
+    public void bind(InetSocketAddress address, int backlog) {
+        throw new UnsupportedOperationException("Unix socket server is bound on creation");
+    }
+
+    @Override
+    public void start() {
+        final Thread acceptThread = new Thread(this::acceptConnections, "RPC unix socket server");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    @Override
+    public void setExecutor(@Nullable Executor executor) {
+        this.executor = executor;
+    }
+
+    @Nullable
+    @Override
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    @Override
+    public void stop(int delay) {
+        stopped = true;
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            log.log(Level.FINE, "Error closing server socket", e);
+        }
+        final long deadline = System.currentTimeMillis() + delay * 1000L;
+        while (activeExchanges.get() > 0 && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        for (SocketChannel connection : connections) {
+            closeConnection(connection);
+        }
+        connectionExecutor.shutdown();
+        try {
+            Files.deleteIfExists(socketPath);
+        } catch (IOException e) {
+            log.log(Level.FINE, "Error deleting socket file", e);
+        }
+    }
+
+    @Override
+    public HttpContext createContext(@NotNull String path, @Nullable HttpHandler handler) {
+        for (Context context : contexts) {
+            if (context.path.equals(path)) {
+                throw new IllegalArgumentException("Context " + path + " already exists");
+            }
+        }
+        final Context context = new Context(path, handler);
+        contexts.add(context);
+        return context;
+    }
+
+    @Override
+    public HttpContext createContext(@NotNull String path) {
+        return createContext(path, null);
+    }
+
+    @Override
+    public void removeContext(@NotNull String path) {
+        if (!contexts.removeIf(context -> context.path.equals(path))) {
+            throw new IllegalArgumentException("Context " + path + " does not exist");
+        }
+    }
+
+    @Override
+    public void removeContext(@NotNull HttpContext context) {
+        contexts.remove(context);
+    }
+
+    /**
+     * Unix socket server has no network address.
+     */
+    @Nullable
+    @Override
+    public InetSocketAddress getAddress() {
+        return null;
+    }
+
+    private void acceptConnections() {
+        while (!stopped) {
+            final SocketChannel connection;
+            try {
+                connection = serverChannel.accept();
+            } catch (IOException e) {
+                if (!stopped) {
+                    log.log(Level.SEVERE, "Error accepting unix socket connection", e);
+                }
+                return;
+            }
+            connections.add(connection);
+            try {
+                connectionExecutor.execute(() -> serveConnection(connection));
+            } catch (RejectedExecutionException e) {
+                closeConnection(connection);
+            }
+        }
+    }
+
+    /**
+     * Reads requests from the connection one by one. The next request is read once the previous exchange is closed.
+     */
+    private void serveConnection(@NotNull SocketChannel connection) {
+        try {
+            final InputStream in = new BufferedInputStream(Channels.newInputStream(connection));
+            final OutputStream out = new BufferedOutputStream(Channels.newOutputStream(connection));
+            while (!stopped) {
+                final Exchange exchange = readRequest(in, out);
+                if (exchange == null) {
+                    break;
+                }
+                activeExchanges.incrementAndGet();
+                try {
+                    handleExchange(exchange);
+                    exchange.awaitClose();
+                } finally {
+                    activeExchanges.decrementAndGet();
+                }
+                if (!exchange.isReusable()) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            if (!stopped) {
+                log.log(Level.FINE, "Unix socket connection error", e);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closeConnection(connection);
+        }
+    }
+
+    @Nullable
+    private Exchange readRequest(@NotNull InputStream in, @NotNull OutputStream out) throws IOException {
+        final String requestLine = HttpStreams.readLine(in);
+        if (requestLine == null) {
+            // Connection closed by the client
+            return null;
+        }
+        final String[] parts = requestLine.split(" ");
+        if (parts.length != 3 || !parts[2].startsWith("HTTP/1.")) {
+            throw new IOException("Invalid HTTP request line: " + requestLine);
+        }
+        final URI uri;
+        try {
+            uri = new URI(parts[1]);
+        } catch (Exception e) {
+            throw new IOException("Invalid HTTP request URI: " + parts[1], e);
+        }
+        final Headers requestHeaders = new Headers();
+        HttpStreams.readHeaders(in, requestHeaders::add);
+
+        if (requestHeaders.containsKey("Transfer-Encoding")) {
+            throw new IOException("HTTP transfer encodings are not supported");
+        }
+        final long contentLength = parseContentLength(requestHeaders.getFirst("Content-Length"));
+        final HttpStreams.BodyInputStream body = new HttpStreams.BodyInputStream(in, contentLength);
+        final boolean keepAlive = parts[2].equals("HTTP/1.1") && !"close".equalsIgnoreCase(requestHeaders.getFirst("Connection"));
+        return new Exchange(parts[0], uri, parts[2], requestHeaders, body, out, keepAlive, findContext(uri.getPath()));
+    }
+
+    private static long parseContentLength(@Nullable String value) throws IOException {
+        if (value == null) {
+            return 0;
+        }
+        final long length = CommonUtils.toLong(value, -1);
+        if (length < 0) {
+            throw new IOException("Invalid HTTP content length: " + value);
+        }
+        return length;
+    }
+
+    @Nullable
+    private Context findContext(@Nullable String path) {
+        Context result = null;
+        for (Context context : contexts) {
+            if (path != null && path.startsWith(context.path) && (result == null || context.path.length() > result.path.length())) {
+                result = context;
+            }
+        }
+        return result;
+    }
+
+    private void handleExchange(@NotNull Exchange exchange) {
+        final Runnable task = () -> {
+            try {
+                final Context context = exchange.context;
+                if (context == null || context.handler == null) {
+                    try (exchange) {
+                        exchange.sendResponseHeaders(RpcConstants.SC_NOT_FOUND, -1);
+                    }
+                    return;
+                }
+                new Filter.Chain(context.filters, context.handler).doFilter(exchange);
+            } catch (Throwable e) {
+                log.log(Level.SEVERE, "Error handling unix socket exchange", e);
+                exchange.abort();
+            }
+        };
+        if (executor == null) {
+            task.run();
+        } else {
+            executor.execute(task);
+        }
+    }
+
+    private void closeConnection(@NotNull SocketChannel connection) {
+        connections.remove(connection);
+        try {
+            connection.close();
+        } catch (IOException e) {
+            log.log(Level.FINE, "Error closing unix socket connection", e);
+        }
+    }
+
+    private final class Context extends HttpContext {
+        private final String path;
+        private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+        private final List<Filter> filters = new CopyOnWriteArrayList<>();
+        private volatile HttpHandler handler;
+        private Authenticator authenticator;
+
+        Context(@NotNull String path, @Nullable HttpHandler handler) {
+            this.path = path;
+            this.handler = handler;
+        }
+
+        @Override
+        public HttpHandler getHandler() {
+            return handler;
+        }
+
+        @Override
+        public void setHandler(HttpHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public String getPath() {
+            return path;
+        }
+
+        @Override
+        public HttpServer getServer() {
+            return UnixSocketHttpServer.this;
+        }
+
+        @Override
+        public Map<String, Object> getAttributes() {
+            return attributes;
+        }
+
+        @Override
+        public List<Filter> getFilters() {
+            return filters;
+        }
+
+        @Override
+        public Authenticator setAuthenticator(Authenticator authenticator) {
+            final Authenticator previous = this.authenticator;
+            this.authenticator = authenticator;
+            return previous;
+        }
+
+        @Override
+        public Authenticator getAuthenticator() {
+            return authenticator;
+        }
+    }
+
+    private static final class Exchange extends HttpExchange {
+        private final String method;
+        private final URI uri;
+        private final String protocol;
+        private final Headers requestHeaders;
+        private final Headers responseHeaders = new Headers();
+        private final HttpStreams.BodyInputStream requestBody;
+        private final OutputStream connectionOut;
+        private final boolean keepAlive;
+        private final Context context;
+        private final Map<String, Object> attributes = new HashMap<>();
+        private final CountDownLatch closeLatch = new CountDownLatch(1);
+        private InputStream requestStream;
+        private OutputStream responseStream;
+        private OutputStream body;
+        private int responseCode = -1;
+        private boolean closed;
+        private boolean connectionDelimited;
+        private volatile boolean reusable;
+
+        Exchange(
+            @NotNull String method,
+            @NotNull URI uri,
+            @NotNull String protocol,
+            @NotNull Headers requestHeaders,
+            @NotNull HttpStreams.BodyInputStream requestBody,
+            @NotNull OutputStream connectionOut,
+            boolean keepAlive,
+            @Nullable Context context
+        ) {
+            this.method = method;
+            this.uri = uri;
+            this.protocol = protocol;
+            this.requestHeaders = requestHeaders;
+            this.requestBody = requestBody;
+            this.connectionOut = connectionOut;
+            this.keepAlive = keepAlive;
+            this.context = context;
+            this.requestStream = requestBody;
+            this.responseStream = new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    getBody().write(b);
+                }
+
+                @Override
+                public void write(@NotNull byte[] b, int off, int len) throws IOException {
+                    getBody().write(b, off, len);
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    getBody().flush();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    getBody().close();
+                }
+            };
+        }
+
+        @NotNull
+        private OutputStream getBody() throws IOException {
+            if (body == null) {
+                throw new IOException("Response headers are not sent");
+            }
+            return body;
+        }
+
+        @Override
+        public Headers getRequestHeaders() {
+            return requestHeaders;
+        }
+
+        @Override
+        public Headers getResponseHeaders() {
+            return responseHeaders;
+        }
+
+        @Override
+        public URI getRequestURI() {
+            return uri;
+        }
+
+        @Override
+        public String getRequestMethod() {
+            return method;
+        }
+
+        @Override
+        public HttpContext getHttpContext() {
+            return context;
+        }
+
+        @Override
+        public void sendResponseHeaders(int code, long length) throws IOException {
+            if (responseCode >= 0) {
+                throw new IOException("Response headers are already sent");
+            }
+            responseCode = code;
+            HttpStreams.writeLine(connectionOut, "HTTP/1.1 " + code + " " + getReasonPhrase(code));
+            for (Map.Entry<String, List<String>> header : responseHeaders.entrySet()) {
+                for (String value : header.getValue()) {
+                    HttpStreams.writeLine(connectionOut, header.getKey() + ": " + value);
+                }
+            }
+            if (length == 0) {
+                // Body of unknown length ends with the connection
+                connectionDelimited = true;
+                HttpStreams.writeLine(connectionOut, "Connection: close");
+                body = new HttpStreams.BodyOutputStream(connectionOut, -1);
+            } else {
+                HttpStreams.writeLine(connectionOut, "Content-Length: " + Math.max(length, 0));
+                body = new HttpStreams.BodyOutputStream(connectionOut, Math.max(length, 0));
+                if (!keepAlive) {
+                    HttpStreams.writeLine(connectionOut, "Connection: close");
+                }
+            }
+            HttpStreams.writeLine(connectionOut, "");
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if (body == null) {
+                    // Closed without response
+                    return;
+                }
+                body.close();
+                connectionOut.flush();
+                requestBody.close();
+                reusable = keepAlive && !connectionDelimited && requestBody.isComplete();
+            } catch (IOException e) {
+                log.log(Level.FINE, "Error closing unix socket exchange", e);
+            } finally {
+                closeLatch.countDown();
+            }
+        }
+
+        /**
+         * Closes exchange after a handler error. The connection is not reused.
+         */
+        void abort() {
+            if (!closed) {
+                closed = true;
+                closeLatch.countDown();
+            }
+        }
+
+        void awaitClose() throws InterruptedException {
+            closeLatch.await();
+        }
+
+        boolean isReusable() {
+            return reusable;
+        }
+
+        @Override
+        public InputStream getRequestBody() {
+            return requestStream;
+        }
+
+        @Override
+        public OutputStream getResponseBody() {
+            return responseStream;
+        }
+
+        @Override
+        public InetSocketAddress getRemoteAddress() {
+            return LOCAL_ADDRESS;
+        }
+
+        @Override
+        public int getResponseCode() {
+            return responseCode;
+        }
+
+        @Override
+        public InetSocketAddress getLocalAddress() {
+            return LOCAL_ADDRESS;
+        }
+
+        @Override
+        public String getProtocol() {
+            return protocol;
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            return attributes.get(name);
+        }
+
+        @Override
+        public void setAttribute(String name, Object value) {
+            attributes.put(name, value);
+        }
+
+        @Override
+        public void setStreams(InputStream in, OutputStream out) {
+            if (in != null) {
+                requestStream = in;
+            }
+            if (out != null) {
+                responseStream = out;
+            }
+        }
+
+        @Override
+        public HttpPrincipal getPrincipal() {
+            return null;
+        }
+
+        @NotNull
+        private static String getReasonPhrase(int code) {
+            return switch (code) {
+                case RpcConstants.SC_OK -> "OK";
+                case RpcConstants.SC_BAD_REQUEST -> "Bad Request";
+                case RpcConstants.SC_FORBIDDEN -> "Forbidden";
+                case RpcConstants.SC_NOT_FOUND -> "Not Found";
+                case RpcConstants.SC_UNSUPPORTED -> "Method Not Allowed";
+                case RpcConstants.SC_UNSUPPORTED_MEDIA_TYPE -> "Unsupported Media Type";
+                case RpcConstants.SC_SERVER_ERROR -> "Internal Server Error";
+                case RpcConstants.SC_UNAVAILABLE -> "Service Unavailable";
+                default -> "";
+            };
+        }
+    }
+}
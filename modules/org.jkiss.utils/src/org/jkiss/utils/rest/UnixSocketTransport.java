@@ -0,0 +1,269 @@
+/*
+ * DBeaver - Universal Database Manager
+ * Copyright (C) 2010-2024 DBeaver Corp and others
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jkiss.utils.rest;
+
+import org.jkiss.code.NotNull;
+import org.jkiss.code.Nullable;
+import org.jkiss.utils.CommonUtils;
+
+import java.io.*;
+import java.net.StandardProtocolFamily;
+import java.net.URI;
+import java.net.UnixDomainSocketAddress;
+import java.net.http.HttpTimeoutException;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.Deque;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+
+/**
+ * HTTP/1.1 transport over a Unix domain socket, for servers created with {@link RestServer.Builder#setUnixSocket}.
+ * Connections are kept alive and reused. Host and path of request endpoints are sent as is,
+ * so the client URI may be any {@code http} URI, e.g. {@code http://localhost/}.
+ */
+public class UnixSocketTransport implements RpcTransport {
+
+    private final UnixDomainSocketAddress address;
+    private final Deque<Connection> idleConnections = new ConcurrentLinkedDeque<>();
+    private final ExecutorService executor;
+    private volatile boolean closed;
+
+    public UnixSocketTransport(@NotNull Path socketPath) {
+        this.address = UnixDomainSocketAddress.of(socketPath);
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            final Thread thread = new Thread(runnable, "RPC unix socket client");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @NotNull
+    @Override
+    public Response send(@NotNull Request request) throws IOException, InterruptedException {
+        if (closed) {
+            throw new IOException("Transport is closed");
+        }
+        Connection connection = idleConnections.pollFirst();
+        if (connection != null) {
+            try {
+                return connection.send(request);
+            } catch (IOException e) {
+                if (connection.responseStarted || e instanceof HttpTimeoutException) {
+                    throw e;
+                }
+                // Idle connection was closed by the server before the request was read, retry with a new one
+            }
+        }
+        connection = new Connection(SocketChannel.open(StandardProtocolFamily.UNIX));
+        try {
+            connection.channel.connect(address);
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+        return connection.send(request);
+    }
+
+    @NotNull
+    @Override
+    public CompletableFuture<Response> sendAsync(@NotNull Request request) {
+        final CompletableFuture<Response> result = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    final Response response = send(request);
+                    final byte[] body;
+                    try (InputStream in = response.getBody()) {
+                        if (result.isDone()) {
+                            // Cancelled while the request was being sent
+                            return;
+                        }
+                        body = in.readAllBytes();
+                    }
+                    // The body is received here, so it can be parsed on any thread
+                    result.complete(new ConnectionResponse(
+                        response.getStatusCode(),
+                        ((ConnectionResponse) response).headers(),
+                        new ByteArrayInputStream(body)));
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(new IOException("Transport is closed", e));
+        }
+        return result;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        executor.shutdown();
+        for (Connection connection = idleConnections.pollFirst(); connection != null; connection = idleConnections.pollFirst()) {
+            connection.close();
+        }
+    }
+
+    private final class Connection {
+        private final SocketChannel channel;
+        private final InputStream in;
+        private final OutputStream out;
+        private boolean responseStarted;
+
+        Connection(@NotNull SocketChannel channel) {
+            this.channel = channel;
+            this.in = new BufferedInputStream(Channels.newInputStream(channel));
+            this.out = new BufferedOutputStream(Channels.newOutputStream(channel));
+        }
+
+        @NotNull
+        Response send(@NotNull Request request) throws IOException {
+            responseStarted = false;
+            final ScheduledFuture<?> timeout = request.timeout() > 0
+                ? TimeoutScheduler.INSTANCE.schedule(this::close, request.timeout(), TimeUnit.MILLISECONDS)
+                : null;
+            try {
+                writeRequest(request);
+                return readResponse();
+            } catch (IOException e) {
+                close();
+                if (timeout != null && timeout.isDone()) {
+                    throw new HttpTimeoutException("Request timed out");
+                }
+                throw e;
+            } finally {
+                if (timeout != null) {
+                    timeout.cancel(false);
+                }
+            }
+        }
+
+        private void writeRequest(@NotNull Request request) throws IOException {
+            final URI endpoint = request.endpoint();
+            final String path = CommonUtils.isEmpty(endpoint.getRawPath()) ? "/" : endpoint.getRawPath();
+            HttpStreams.writeLine(out, "POST " + (endpoint.getRawQuery() == null ? path : path + "?" + endpoint.getRawQuery()) + " HTTP/1.1");
+            HttpStreams.writeLine(out, "Host: " + (endpoint.getHost() == null ? "localhost" : endpoint.getHost()));
+            for (Map.Entry<String, String> header : request.headers().entrySet()) {
+                HttpStreams.writeLine(out, header.getKey() + ": " + header.getValue());
+            }
+            HttpStreams.writeLine(out, "Content-Length: " + request.bodyLength());
+            HttpStreams.writeLine(out, "");
+            out.write(request.body(), 0, request.bodyLength());
+            out.flush();
+        }
+
+        @NotNull
+        private Response readResponse() throws IOException {
+            final String statusLine = HttpStreams.readLine(in);
+            if (statusLine == null) {
+                throw new EOFException("Connection closed by the server");
+            }
+            responseStarted = true;
+            final String[] status = statusLine.split(" ", 3);
+            if (status.length < 2 || !status[0].startsWith("HTTP/1.")) {
+                throw new IOException("Invalid HTTP status line: " + statusLine);
+            }
+            final int statusCode;
+            try {
+                statusCode = Integer.parseInt(status[1]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid HTTP status line: " + statusLine, e);
+            }
+            final Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            HttpStreams.readHeaders(in, headers::putIfAbsent);
+
+            if (headers.containsKey("Transfer-Encoding")) {
+                throw new IOException("HTTP transfer encodings are not supported");
+            }
+            final String contentLength = headers.get("Content-Length");
+            final boolean keepAlive = !"close".equalsIgnoreCase(headers.get("Connection")) && contentLength != null;
+            final HttpStreams.BodyInputStream body = new HttpStreams.BodyInputStream(
+                in, contentLength == null ? -1 : CommonUtils.toLong(contentLength, -1));
+            return new ConnectionResponse(statusCode, headers, new FilterInputStream(body) {
+                @Override
+                public void close() throws IOException {
+                    if (!keepAlive) {
+                        // The connection is not reused, so the rest of the body (e.g. an endless event stream) is not read
+                        Connection.this.close();
+                        return;
+                    }
+                    try {
+                        body.close();
+                    } catch (IOException e) {
+                        Connection.this.close();
+                        throw e;
+                    }
+                    release(keepAlive && body.isComplete());
+                }
+            });
+        }
+
+        private void release(boolean reusable) {
+            if (reusable && !closed) {
+                idleConnections.addFirst(this);
+            } else {
+                close();
+            }
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private record ConnectionResponse(
+        int statusCode,
+        @NotNull Map<String, String> headers,
+        @NotNull InputStream body
+    ) implements Response {
+        @Override
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        @Nullable
+        @Override
+        public String getHeader(@NotNull String name) {
+            return headers.get(name);
+        }
+
+        @NotNull
+        @Override
+        public InputStream getBody() {
+            return body;
+        }
+    }
+
+    private static final class TimeoutScheduler {
+        static final ScheduledExecutorService INSTANCE = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "RPC unix socket timeout");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}